@@ -0,0 +1,101 @@
+-- Scan-time benchmark of the monthly rollup (MonthlyRollup) on the rowstore vs. Appointments_Columnstore, on a
+-- synthetic table of 50M appointments shaped like Appointments: 2 years of dates, 2,000 caregivers, 12 vaccines and
+-- 5M patients. Run it in a scratch database, never next to real data; loading takes a while and about 4 GB.
+-- Each query runs once to warm the buffer pool and then RUNS times; the table at the end has the average and best
+-- elapsed time of each. SET STATISTICS TIME, IO ON in the session shows CPU time and reads as well.
+SET NOCOUNT ON;
+
+CREATE PARTITION FUNCTION BenchMonths (DATE) AS RANGE RIGHT FOR VALUES (
+    '2025-01-01', '2025-02-01', '2025-03-01', '2025-04-01', '2025-05-01', '2025-06-01',
+    '2025-07-01', '2025-08-01', '2025-09-01', '2025-10-01', '2025-11-01', '2025-12-01',
+    '2026-01-01', '2026-02-01', '2026-03-01', '2026-04-01', '2026-05-01', '2026-06-01',
+    '2026-07-01', '2026-08-01', '2026-09-01', '2026-10-01', '2026-11-01', '2026-12-01');
+
+CREATE PARTITION SCHEME BenchScheme AS PARTITION BenchMonths ALL TO ([PRIMARY]);
+
+CREATE TABLE BenchAppointments (
+    Time DATE NOT NULL,
+    Caregiver VARCHAR(255),
+    Vaccine VARCHAR(255),
+    Patient VARCHAR(255),
+    Appointment_id INT IDENTITY(1,1),
+    Slot_minute INT NULL,
+    CONSTRAINT BenchAppointments_PK PRIMARY KEY (Time, Appointment_id)
+) ON BenchScheme (Time);
+GO
+
+-- 50 batches of 1M rows, so the log can be reused between them
+DECLARE @batch INT = 0;
+WHILE @batch < 50 BEGIN
+    WITH Digits AS (SELECT N FROM (VALUES (0), (1), (2), (3), (4), (5), (6), (7), (8), (9)) D (N)),
+         Numbers AS (SELECT A.N + 10 * B.N + 100 * C.N + 1000 * D.N + 10000 * E.N + 100000 * F.N AS N
+                       FROM Digits A, Digits B, Digits C, Digits D, Digits E, Digits F)
+    INSERT INTO BenchAppointments WITH (TABLOCK) (Time, Caregiver, Vaccine, Patient, Slot_minute)
+    SELECT DATEADD(DAY, ABS(CHECKSUM(@batch, N, 1)) % 730, '2025-01-01'),
+           'caregiver' + CAST(ABS(CHECKSUM(@batch, N, 2)) % 2000 AS VARCHAR(10)),
+           'vaccine' + CAST(ABS(CHECKSUM(@batch, N, 3)) % 12 AS VARCHAR(10)),
+           'patient' + CAST(ABS(CHECKSUM(@batch, N, 4)) % 5000000 AS VARCHAR(10)),
+           CASE WHEN N % 4 = 0 THEN NULL ELSE 480 + 15 * (N % 36) END
+      FROM Numbers;
+    SET @batch += 1;
+END
+GO
+
+CREATE NONCLUSTERED COLUMNSTORE INDEX BenchAppointments_Columnstore
+    ON BenchAppointments (Time, Caregiver, Vaccine, Patient) ON BenchScheme (Time);
+GO
+
+-- the rollup by vaccine and by caregiver over a year, as MonthlyRollup runs them
+CREATE TABLE #timings (Query VARCHAR(64), Store VARCHAR(16), Run INT, Elapsed_ms INT);
+DECLARE @runs INT = 5, @run INT = 0, @start DATETIME2, @sink BIGINT;
+WHILE @run <= @runs BEGIN
+    SET @start = SYSDATETIME();
+    SELECT @sink = COUNT(*) FROM (
+        SELECT DATEFROMPARTS(YEAR(Time), MONTH(Time), 1) AS Month, Vaccine, COUNT_BIG(*) AS Appointments,
+               COUNT(DISTINCT Patient) AS Patients
+          FROM BenchAppointments
+         WHERE Time >= '2025-07-01' AND Time < '2026-07-01'
+         GROUP BY DATEFROMPARTS(YEAR(Time), MONTH(Time), 1), Vaccine) R
+    OPTION (IGNORE_NONCLUSTERED_COLUMNSTORE_INDEX);
+    INSERT INTO #timings VALUES ('by vaccine', 'rowstore', @run, DATEDIFF(MILLISECOND, @start, SYSDATETIME()));
+
+    SET @start = SYSDATETIME();
+    SELECT @sink = COUNT(*) FROM (
+        SELECT DATEFROMPARTS(YEAR(Time), MONTH(Time), 1) AS Month, Vaccine, COUNT_BIG(*) AS Appointments,
+               COUNT(DISTINCT Patient) AS Patients
+          FROM BenchAppointments WITH (INDEX (BenchAppointments_Columnstore))
+         WHERE Time >= '2025-07-01' AND Time < '2026-07-01'
+         GROUP BY DATEFROMPARTS(YEAR(Time), MONTH(Time), 1), Vaccine) R;
+    INSERT INTO #timings VALUES ('by vaccine', 'columnstore', @run, DATEDIFF(MILLISECOND, @start, SYSDATETIME()));
+
+    SET @start = SYSDATETIME();
+    SELECT @sink = COUNT(*) FROM (
+        SELECT DATEFROMPARTS(YEAR(Time), MONTH(Time), 1) AS Month, Caregiver, COUNT_BIG(*) AS Appointments,
+               COUNT(DISTINCT Patient) AS Patients
+          FROM BenchAppointments
+         WHERE Time >= '2025-07-01' AND Time < '2026-07-01'
+         GROUP BY DATEFROMPARTS(YEAR(Time), MONTH(Time), 1), Caregiver) R
+    OPTION (IGNORE_NONCLUSTERED_COLUMNSTORE_INDEX);
+    INSERT INTO #timings VALUES ('by caregiver', 'rowstore', @run, DATEDIFF(MILLISECOND, @start, SYSDATETIME()));
+
+    SET @start = SYSDATETIME();
+    SELECT @sink = COUNT(*) FROM (
+        SELECT DATEFROMPARTS(YEAR(Time), MONTH(Time), 1) AS Month, Caregiver, COUNT_BIG(*) AS Appointments,
+               COUNT(DISTINCT Patient) AS Patients
+          FROM BenchAppointments WITH (INDEX (BenchAppointments_Columnstore))
+         WHERE Time >= '2025-07-01' AND Time < '2026-07-01'
+         GROUP BY DATEFROMPARTS(YEAR(Time), MONTH(Time), 1), Caregiver) R;
+    INSERT INTO #timings VALUES ('by caregiver', 'columnstore', @run, DATEDIFF(MILLISECOND, @start, SYSDATETIME()));
+    SET @run += 1;
+END
+
+-- run 0 only warmed the cache
+SELECT Query, Store, AVG(Elapsed_ms) AS Avg_ms, MIN(Elapsed_ms) AS Best_ms
+  FROM #timings WHERE Run > 0
+ GROUP BY Query, Store
+ ORDER BY Query, Store;
+GO
+
+DROP TABLE BenchAppointments;
+DROP PARTITION SCHEME BenchScheme;
+DROP PARTITION FUNCTION BenchMonths;
\ No newline at end of file
@@ -1,3 +1,15 @@
+-- Appointments and Availabilities are partitioned by month of Time. SlidePartitions adds boundaries ahead of today
+-- and switches old months out, so these are only the months a new database starts with.
+CREATE PARTITION FUNCTION MonthlyPartitions (DATE) AS RANGE RIGHT FOR VALUES (
+    '2025-01-01', '2025-02-01', '2025-03-01', '2025-04-01', '2025-05-01', '2025-06-01',
+    '2025-07-01', '2025-08-01', '2025-09-01', '2025-10-01', '2025-11-01', '2025-12-01',
+    '2026-01-01', '2026-02-01', '2026-03-01', '2026-04-01', '2026-05-01', '2026-06-01',
+    '2026-07-01', '2026-08-01', '2026-09-01', '2026-10-01', '2026-11-01', '2026-12-01',
+    '2027-01-01', '2027-02-01', '2027-03-01', '2027-04-01', '2027-05-01', '2027-06-01',
+    '2027-07-01', '2027-08-01', '2027-09-01', '2027-10-01', '2027-11-01', '2027-12-01');
+
+CREATE PARTITION SCHEME MonthlyScheme AS PARTITION MonthlyPartitions ALL TO ([PRIMARY]);
+
 CREATE TABLE Caregivers (
     Username VARCHAR(255),
     Salt BINARY(16),
@@ -8,8 +20,8 @@ CREATE TABLE Caregivers (
 CREATE TABLE Availabilities (
     Time DATE,
     Username VARCHAR(255) REFERENCES Caregivers,
-    PRIMARY KEY (Time, Username)
-);
+    CONSTRAINT Availabilities_PK PRIMARY KEY (Time, Username)
+) ON MonthlyScheme (Time);
 
 CREATE TABLE Vaccines (
     Name VARCHAR(255),
@@ -24,11 +36,374 @@ CREATE TABLE Patients (
     PRIMARY KEY (Username)
 );
 
+-- clustered by date, so every index is aligned with the monthly partitions; Appointments_Id finds an ID in each
 CREATE TABLE Appointments (
-    Time DATE,
+    Time DATE NOT NULL,
     Caregiver VARCHAR(255) REFERENCES Caregivers(Username),
     Vaccine VARCHAR(255) REFERENCES Vaccines(Name),
     Patient VARCHAR(255) REFERENCES Patients(Username),
     Appointment_id INT IDENTITY(1,1),
+    Slot_minute INT NULL,
+    CONSTRAINT Appointments_PK PRIMARY KEY (Time, Appointment_id)
+) ON MonthlyScheme (Time);
+
+CREATE INDEX Appointments_Id ON Appointments (Appointment_id) ON MonthlyScheme (Time);
+
+-- a caregiver can hold each time slot of a day once; day-level appointments have no slot. A caregiver's day is
+-- booked either whole or by the slot: booking a slot takes the day's Availabilities row, and none is booked while
+-- the caregiver has a day-level appointment
+CREATE UNIQUE INDEX Appointments_Slot ON Appointments (Time, Caregiver, Slot_minute) WHERE Slot_minute IS NOT NULL
+    ON MonthlyScheme (Time);
+
+-- hours a caregiver works on a date, in minutes from midnight, split into fixed-length appointment slots
+CREATE TABLE WorkingWindows (
+    Time DATE,
+    Username VARCHAR(255) REFERENCES Caregivers,
+    Start_minute INT,
+    End_minute INT,
+    PRIMARY KEY (Time, Username, Start_minute),
+    CHECK (Start_minute >= 0 AND Start_minute < End_minute AND End_minute <= 1440)
+);
+
+CREATE TABLE Waitlist (
+    Waitlist_id INT IDENTITY(1,1),
+    Time DATE,
+    Vaccine VARCHAR(255) REFERENCES Vaccines(Name),
+    Patient VARCHAR(255) REFERENCES Patients(Username),
+    PRIMARY KEY (Waitlist_id),
+    UNIQUE (Time, Vaccine, Patient)
+);
+
+CREATE INDEX Waitlist_Time_Vaccine ON Waitlist (Time, Vaccine, Waitlist_id);
+
+CREATE TABLE IdempotencyKeys (
+    Username VARCHAR(255),
+    Request_id VARCHAR(64),
+    Operation VARCHAR(16),
+    Appointment_id INT,
+    Time DATE,
+    Caregiver VARCHAR(255),
+    Vaccine VARCHAR(255),
+    Patient VARCHAR(255),
+    Expires DATETIME2,
+    -- a request ID is live for one operation at a time; IdempotencyKey.find and cancel check the others
+    CONSTRAINT IdempotencyKeys_PK PRIMARY KEY (Username, Request_id, Operation)
+);
+
+CREATE INDEX IdempotencyKeys_Expires ON IdempotencyKeys (Expires);
+
+-- Optional striped dose counters. A vaccine with stripes keeps its doses in Stripes rows here instead of in
+-- Vaccines.Doses, so concurrent reservations decrement different rows. Stripes are numbered from 0.
+CREATE TABLE VaccineStripes (
+    Name VARCHAR(255) REFERENCES Vaccines,
+    Stripe INT,
+    Doses INT,
+    PRIMARY KEY (Name, Stripe),
+    CHECK (Doses >= 0)
+);
+GO
+
+-- total doses of every vaccine, striped or not
+CREATE VIEW VaccineInventory AS
+SELECT V.Name, V.Doses + COALESCE(S.Doses, 0) AS Doses, COALESCE(S.Stripes, 0) AS Stripes
+  FROM Vaccines V
+  LEFT JOIN (SELECT Name, SUM(Doses) AS Doses, COUNT(*) AS Stripes FROM VaccineStripes GROUP BY Name) S
+    ON S.Name = V.Name;
+GO
+
+-- Take @Count doses of @Name inside the caller's transaction: from random stripes with stock, preferring stripes no
+-- other transaction holds, then from Vaccines.Doses. Returns 1, taking nothing, if there are not enough doses.
+CREATE PROCEDURE TakeDoses @Name VARCHAR(255), @Count INT AS
+BEGIN
+    SET NOCOUNT ON;
+    DECLARE @stripe INT, @take INT;
+    IF COALESCE((SELECT Doses FROM VaccineInventory WHERE Name = @Name), 0) < @Count
+        RETURN 1;
+    WHILE @Count > 0
+    BEGIN
+        SET @stripe = NULL;
+        SELECT TOP (1) @stripe = Stripe, @take = CASE WHEN Doses < @Count THEN Doses ELSE @Count END
+          FROM VaccineStripes WITH (UPDLOCK, ROWLOCK, READPAST)
+         WHERE Name = @Name AND Doses > 0 ORDER BY NEWID();
+        IF @stripe IS NULL
+            SELECT TOP (1) @stripe = Stripe, @take = CASE WHEN Doses < @Count THEN Doses ELSE @Count END
+              FROM VaccineStripes WITH (UPDLOCK, ROWLOCK)
+             WHERE Name = @Name AND Doses > 0 ORDER BY NEWID();
+        IF @stripe IS NULL
+            BREAK;
+        UPDATE VaccineStripes SET Doses = Doses - @take WHERE Name = @Name AND Stripe = @stripe;
+        SET @Count -= @take;
+    END
+    IF @Count > 0
+    BEGIN
+        UPDATE Vaccines SET Doses = Doses - @Count WHERE Name = @Name AND Doses >= @Count;
+        -- the doses counted above were taken concurrently; RetryPolicy treats 50001 as transient, so the command
+        -- rolls back and runs again with a fresh count
+        IF @@ROWCOUNT = 0
+            THROW 50001, 'Not enough available doses', 1;
+    END
+    RETURN 0;
+END;
+GO
+
+-- Add @Count doses of @Name: a few (a cancellation) go one each to random stripes, preferring stripes no other
+-- transaction holds; a shipment is spread evenly over every stripe. Unstriped vaccines use Vaccines.Doses.
+CREATE PROCEDURE PutDoses @Name VARCHAR(255), @Count INT AS
+BEGIN
+    SET NOCOUNT ON;
+    DECLARE @stripes INT = (SELECT COUNT(*) FROM VaccineStripes WHERE Name = @Name), @stripe INT;
+    IF @stripes = 0
+        UPDATE Vaccines SET Doses = Doses + @Count WHERE Name = @Name;
+    ELSE IF @Count < @stripes
+        WHILE @Count > 0
+        BEGIN
+            SET @stripe = NULL;
+            SELECT TOP (1) @stripe = Stripe FROM VaccineStripes WITH (UPDLOCK, ROWLOCK, READPAST)
+             WHERE Name = @Name ORDER BY NEWID();
+            IF @stripe IS NULL
+                SELECT TOP (1) @stripe = Stripe FROM VaccineStripes WITH (UPDLOCK, ROWLOCK)
+                 WHERE Name = @Name ORDER BY NEWID();
+            UPDATE VaccineStripes SET Doses = Doses + 1 WHERE Name = @Name AND Stripe = @stripe;
+            SET @Count -= 1;
+        END
+    ELSE
+        UPDATE VaccineStripes
+           SET Doses = Doses + @Count / @stripes + CASE WHEN Stripe < @Count % @stripes THEN 1 ELSE 0 END
+         WHERE Name = @Name;
+END;
+GO
+
+-- Split the doses of @Name evenly over @Stripes stripes, or move them back into Vaccines.Doses when @Stripes is 0
+CREATE PROCEDURE StripeVaccine @Name VARCHAR(255), @Stripes INT AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    BEGIN TRANSACTION;
+    DECLARE @doses INT = (SELECT V.Doses + COALESCE((SELECT SUM(S.Doses) FROM VaccineStripes S WITH (HOLDLOCK)
+                                                      WHERE S.Name = V.Name), 0)
+                            FROM Vaccines V WITH (UPDLOCK, HOLDLOCK) WHERE V.Name = @Name);
+    DELETE FROM VaccineStripes WHERE Name = @Name;
+    IF @Stripes = 0
+        UPDATE Vaccines SET Doses = @doses WHERE Name = @Name;
+    ELSE
+    BEGIN
+        UPDATE Vaccines SET Doses = 0 WHERE Name = @Name;
+        INSERT INTO VaccineStripes (Name, Stripe, Doses)
+        SELECT @Name, N.Stripe, @doses / @Stripes + CASE WHEN N.Stripe < @doses % @Stripes THEN 1 ELSE 0 END
+          FROM (SELECT TOP (@Stripes) ROW_NUMBER() OVER (ORDER BY (SELECT NULL)) - 1 AS Stripe
+                  FROM sys.all_objects) N;
+    END
+    COMMIT TRANSACTION;
+END;
+GO
+
+-- IDs of writes queued locally while the database was unreachable and since replayed; a write replayed twice
+-- is applied once
+CREATE TABLE AppliedWrites (
+    Write_id VARCHAR(36),
+    Applied DATETIME2,
+    PRIMARY KEY (Write_id)
+);
+
+CREATE INDEX AppliedWrites_Applied ON AppliedWrites (Applied);
+GO
+
+-- Free caregivers and booked appointments per date, kept up to date by the triggers below in the same transaction
+-- as every change to Availabilities and Appointments, so date-level queries read one row per date
+CREATE TABLE DailyCapacity (
+    Time DATE,
+    FreeCaregivers INT,
+    BookedAppointments INT,
+    PRIMARY KEY (Time)
+);
+GO
+
+CREATE TRIGGER Availabilities_DailyCapacity ON Availabilities AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON;
+    MERGE DailyCapacity WITH (HOLDLOCK) AS D
+    USING (SELECT Time, SUM(Delta) AS Delta
+             FROM (SELECT Time, 1 AS Delta FROM inserted UNION ALL SELECT Time, -1 FROM deleted) Changes
+            GROUP BY Time HAVING SUM(Delta) <> 0) AS C
+       ON D.Time = C.Time
+     WHEN MATCHED THEN UPDATE SET FreeCaregivers = D.FreeCaregivers + C.Delta
+     WHEN NOT MATCHED THEN INSERT (Time, FreeCaregivers, BookedAppointments) VALUES (C.Time, C.Delta, 0);
+END;
+GO
+
+CREATE TRIGGER Appointments_DailyCapacity ON Appointments AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON;
+    MERGE DailyCapacity WITH (HOLDLOCK) AS D
+    USING (SELECT Time, SUM(Delta) AS Delta
+             FROM (SELECT Time, 1 AS Delta FROM inserted UNION ALL SELECT Time, -1 FROM deleted) Changes
+            GROUP BY Time HAVING SUM(Delta) <> 0) AS C
+       ON D.Time = C.Time
+     WHEN MATCHED THEN UPDATE SET BookedAppointments = D.BookedAppointments + C.Delta
+     WHEN NOT MATCHED THEN INSERT (Time, FreeCaregivers, BookedAppointments) VALUES (C.Time, 0, C.Delta);
+END;
+GO
+
+-- Recount DailyCapacity from Availabilities and Appointments. The base tables are read under table locks held to the
+-- end, before DailyCapacity is touched, so the counts can't change underneath. Writers lock the two tables in both
+-- orders (reserve takes Availabilities first, cancel takes Appointments first), so no order avoids deadlocks with all
+-- of them; the rebuild gives way as the deadlock victim instead, and the command retries it on 1205.
+CREATE PROCEDURE RebuildDailyCapacity AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET DEADLOCK_PRIORITY LOW;
+    DECLARE @counts TABLE (Time DATE PRIMARY KEY, FreeCaregivers INT, BookedAppointments INT);
+    BEGIN TRANSACTION;
+    INSERT INTO @counts (Time, FreeCaregivers, BookedAppointments)
+    SELECT Time, SUM(Free), SUM(Booked)
+      FROM (SELECT Time, 1 AS Free, 0 AS Booked FROM Availabilities WITH (TABLOCK, HOLDLOCK)
+            UNION ALL
+            SELECT Time, 0, 1 FROM Appointments WITH (TABLOCK, HOLDLOCK)) Counts
+     GROUP BY Time;
+    DELETE FROM DailyCapacity;
+    INSERT INTO DailyCapacity (Time, FreeCaregivers, BookedAppointments)
+    SELECT Time, FreeCaregivers, BookedAppointments FROM @counts;
+    COMMIT TRANSACTION;
+    SELECT COUNT(*) AS Dates FROM @counts;
+END;
+GO
+
+-- Appointments moved out of Appointments by the archival job once they are older than its horizon. The rows keep
+-- their IDs and have no foreign keys, so history outlives caregivers, patients and vaccines.
+CREATE TABLE AppointmentsArchive (
+    Appointment_id INT,
+    Time DATE,
+    Caregiver VARCHAR(255),
+    Vaccine VARCHAR(255),
+    Patient VARCHAR(255),
+    Slot_minute INT NULL,
+    Archived DATETIME2,
     PRIMARY KEY (Appointment_id)
-);
\ No newline at end of file
+);
+
+CREATE INDEX AppointmentsArchive_Patient ON AppointmentsArchive (Patient, Time);
+
+CREATE INDEX AppointmentsArchive_Caregiver ON AppointmentsArchive (Caregiver, Time);
+GO
+
+CREATE VIEW AppointmentHistory AS
+SELECT Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute FROM Appointments
+UNION ALL
+SELECT Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute FROM AppointmentsArchive;
+GO
+
+-- Move at most @BatchSize appointments dated before @Before to AppointmentsArchive, and delete at most @BatchSize
+-- availabilities, working windows and emptied DailyCapacity rows dated before it. Each statement is its own short
+-- transaction over the oldest keys; returns how many rows of each were affected so the caller knows when to stop.
+CREATE PROCEDURE ArchiveBatch @Before DATE, @BatchSize INT AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    DECLARE @appointments INT, @availabilities INT, @windows INT, @dates INT;
+    WITH Batch AS (SELECT TOP (@BatchSize) * FROM Appointments WHERE Time < @Before ORDER BY Time, Appointment_id)
+    DELETE FROM Batch
+    OUTPUT deleted.Appointment_id, deleted.Time, deleted.Caregiver, deleted.Vaccine, deleted.Patient,
+           deleted.Slot_minute, SYSUTCDATETIME()
+      INTO AppointmentsArchive (Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute, Archived);
+    SET @appointments = @@ROWCOUNT;
+    WITH Batch AS (SELECT TOP (@BatchSize) * FROM Availabilities WHERE Time < @Before ORDER BY Time, Username)
+    DELETE FROM Batch;
+    SET @availabilities = @@ROWCOUNT;
+    WITH Batch AS (SELECT TOP (@BatchSize) * FROM WorkingWindows WHERE Time < @Before
+                    ORDER BY Time, Username, Start_minute)
+    DELETE FROM Batch;
+    SET @windows = @@ROWCOUNT;
+    WITH Batch AS (SELECT TOP (@BatchSize) * FROM DailyCapacity
+                    WHERE Time < @Before AND FreeCaregivers = 0 AND BookedAppointments = 0 ORDER BY Time)
+    DELETE FROM Batch;
+    SET @dates = @@ROWCOUNT;
+    SELECT @appointments AS Appointments, @availabilities AS Availabilities, @windows AS Windows, @dates AS Dates;
+END;
+GO
+
+-- An empty table with the same columns and indexes as Availabilities, for SlidePartitions to switch old partitions
+-- into
+CREATE TABLE AvailabilitiesSwitch (
+    Time DATE,
+    Username VARCHAR(255),
+    CONSTRAINT AvailabilitiesSwitch_PK PRIMARY KEY (Time, Username)
+) ON [PRIMARY];
+GO
+
+-- Sliding window over MonthlyPartitions. Adds a boundary for every month up to @Newest, so new dates never land in
+-- a partition that has to be split while it holds rows, and switches out every month before @Oldest, metadata-only:
+-- its availabilities go to AvailabilitiesSwitch and are truncated, and its appointments to a new table with the
+-- same columns and indexes as Appointments, AppointmentsArchive_<yyyymm>, which is kept if the archival job left
+-- any rows in it and dropped if not. Then the boundary is merged away. Returns the number of months added and
+-- removed.
+CREATE PROCEDURE SlidePartitions @Oldest DATE, @Newest DATE AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    DECLARE @boundary DATE, @added INT = 0, @removed INT = 0, @retired SYSNAME, @sql NVARCHAR(MAX);
+    SELECT @boundary = DATEADD(MONTH, 1, MAX(CAST(V.value AS DATE)))
+      FROM sys.partition_range_values V JOIN sys.partition_functions F ON F.function_id = V.function_id
+     WHERE F.name = 'MonthlyPartitions';
+    WHILE @boundary <= @Newest BEGIN
+        ALTER PARTITION SCHEME MonthlyScheme NEXT USED [PRIMARY];
+        ALTER PARTITION FUNCTION MonthlyPartitions() SPLIT RANGE (@boundary);
+        SET @boundary = DATEADD(MONTH, 1, @boundary);
+        SET @added += 1;
+    END
+    WHILE 1 = 1 BEGIN
+        -- partition 1 holds every date before the lowest boundary
+        SELECT @boundary = MIN(CAST(V.value AS DATE))
+          FROM sys.partition_range_values V JOIN sys.partition_functions F ON F.function_id = V.function_id
+         WHERE F.name = 'MonthlyPartitions';
+        IF @boundary IS NULL OR @boundary > @Oldest BREAK;
+        -- named after the last month in the partition, e.g. AppointmentsArchive_202412 for boundary 2025-01-01
+        SET @retired = N'AppointmentsArchive_' + CONVERT(CHAR(6), DATEADD(MONTH, -1, @boundary), 112);
+        BEGIN TRANSACTION;
+        -- SWITCH needs the same columns, identity and indexes on both sides, including the optional columnstore
+        SET @sql = N'CREATE TABLE ' + QUOTENAME(@retired) + N' (
+                Time DATE NOT NULL,
+                Caregiver VARCHAR(255),
+                Vaccine VARCHAR(255),
+                Patient VARCHAR(255),
+                Appointment_id INT IDENTITY(1,1),
+                Slot_minute INT NULL,
+                CONSTRAINT ' + QUOTENAME(@retired + N'_PK') + N' PRIMARY KEY (Time, Appointment_id)
+            ) ON [PRIMARY];
+            CREATE INDEX Id ON ' + QUOTENAME(@retired) + N' (Appointment_id);
+            CREATE UNIQUE INDEX Slot ON ' + QUOTENAME(@retired) + N' (Time, Caregiver, Slot_minute)
+                WHERE Slot_minute IS NOT NULL;';
+        IF EXISTS (SELECT 1 FROM sys.indexes
+                    WHERE object_id = OBJECT_ID('Appointments') AND name = 'Appointments_Columnstore')
+            SET @sql += N'CREATE NONCLUSTERED COLUMNSTORE INDEX Columnstore ON ' + QUOTENAME(@retired) +
+                        N' (Time, Caregiver, Vaccine, Patient);';
+        EXEC sp_executesql @sql;
+        -- the schema lock waits behind running queries without blocking the ones that arrive after it
+        SET @sql = N'ALTER TABLE Appointments SWITCH PARTITION 1 TO ' + QUOTENAME(@retired) +
+                   N' WITH (WAIT_AT_LOW_PRIORITY (MAX_DURATION = 1 MINUTES, ABORT_AFTER_WAIT = SELF));' +
+                   N' IF NOT EXISTS (SELECT 1 FROM ' + QUOTENAME(@retired) + N') DROP TABLE ' + QUOTENAME(@retired);
+        EXEC sp_executesql @sql;
+        ALTER TABLE Availabilities SWITCH PARTITION 1 TO AvailabilitiesSwitch
+            WITH (WAIT_AT_LOW_PRIORITY (MAX_DURATION = 1 MINUTES, ABORT_AFTER_WAIT = SELF));
+        TRUNCATE TABLE AvailabilitiesSwitch;
+        -- switching doesn't fire the DailyCapacity triggers; both counts of these dates are now zero
+        DELETE FROM DailyCapacity WHERE Time < @boundary;
+        ALTER PARTITION FUNCTION MonthlyPartitions() MERGE RANGE (@boundary);
+        COMMIT TRANSACTION;
+        SET @removed += 1;
+    END
+    SELECT @added AS Added, @removed AS Removed;
+END;
+GO
+
+-- Migrations in resources/migrations already applied; a database created from this file starts with all of them
+CREATE TABLE SchemaVersions (
+    Version VARCHAR(64),
+    Applied DATETIME2,
+    PRIMARY KEY (Version)
+);
+
+INSERT INTO SchemaVersions (Version, Applied) VALUES ('001_partition_by_month', SYSUTCDATETIME()),
+    ('003_switch_out_to_archive_tables', SYSUTCDATETIME()),
+    ('004_idempotency_keys_by_operation', SYSUTCDATETIME()),
+    ('005_one_booking_kind_per_day', SYSUTCDATETIME());
\ No newline at end of file
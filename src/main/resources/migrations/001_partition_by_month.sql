@@ -0,0 +1,70 @@
+-- Partition Appointments and Availabilities by month of Time, as create.sql now does. Both tables and their indexes
+-- are rebuilt on MonthlyScheme, so they are locked for the length of the migration. Every step checks whether it is
+-- still needed, so the script can be rerun by hand after a partial run, or against a schema that already has some of
+-- these objects, and it records itself in SchemaVersions.
+IF NOT EXISTS (SELECT 1 FROM sys.partition_functions WHERE name = 'MonthlyPartitions')
+    CREATE PARTITION FUNCTION MonthlyPartitions (DATE) AS RANGE RIGHT FOR VALUES (
+        '2025-01-01', '2025-02-01', '2025-03-01', '2025-04-01', '2025-05-01', '2025-06-01',
+        '2025-07-01', '2025-08-01', '2025-09-01', '2025-10-01', '2025-11-01', '2025-12-01',
+        '2026-01-01', '2026-02-01', '2026-03-01', '2026-04-01', '2026-05-01', '2026-06-01',
+        '2026-07-01', '2026-08-01', '2026-09-01', '2026-10-01', '2026-11-01', '2026-12-01',
+        '2027-01-01', '2027-02-01', '2027-03-01', '2027-04-01', '2027-05-01', '2027-06-01',
+        '2027-07-01', '2027-08-01', '2027-09-01', '2027-10-01', '2027-11-01', '2027-12-01');
+
+IF NOT EXISTS (SELECT 1 FROM sys.partition_schemes WHERE name = 'MonthlyScheme')
+    CREATE PARTITION SCHEME MonthlyScheme AS PARTITION MonthlyPartitions ALL TO ([PRIMARY]);
+GO
+
+-- the old primary keys were created without names; only keys not yet on a partition scheme are dropped
+DECLARE @sql NVARCHAR(MAX) = N'';
+SELECT @sql += N'ALTER TABLE ' + QUOTENAME(OBJECT_NAME(K.parent_object_id)) +
+               N' DROP CONSTRAINT ' + QUOTENAME(K.name) + N'; '
+  FROM sys.key_constraints K
+  JOIN sys.indexes I ON I.object_id = K.parent_object_id AND I.index_id = K.unique_index_id
+  JOIN sys.data_spaces D ON D.data_space_id = I.data_space_id
+ WHERE K.type = 'PK' AND D.type <> 'PS'
+   AND K.parent_object_id IN (OBJECT_ID('Appointments'), OBJECT_ID('Availabilities'));
+EXEC sp_executesql @sql;
+
+IF EXISTS (SELECT 1 FROM sys.indexes I JOIN sys.data_spaces D ON D.data_space_id = I.data_space_id
+            WHERE I.object_id = OBJECT_ID('Appointments') AND I.name = 'Appointments_Slot' AND D.type <> 'PS')
+    DROP INDEX Appointments_Slot ON Appointments;
+
+-- the clustered key starts with Time now
+IF EXISTS (SELECT 1 FROM sys.indexes WHERE object_id = OBJECT_ID('Appointments') AND name = 'Appointments_Time')
+    DROP INDEX Appointments_Time ON Appointments;
+
+IF COLUMNPROPERTY(OBJECT_ID('Appointments'), 'Time', 'AllowsNull') = 1
+    ALTER TABLE Appointments ALTER COLUMN Time DATE NOT NULL;
+GO
+
+IF OBJECT_ID('Availabilities_PK') IS NULL
+    ALTER TABLE Availabilities ADD CONSTRAINT Availabilities_PK PRIMARY KEY CLUSTERED (Time, Username)
+        ON MonthlyScheme (Time);
+
+IF OBJECT_ID('Appointments_PK') IS NULL
+    ALTER TABLE Appointments ADD CONSTRAINT Appointments_PK PRIMARY KEY CLUSTERED (Time, Appointment_id)
+        ON MonthlyScheme (Time);
+
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE object_id = OBJECT_ID('Appointments') AND name = 'Appointments_Id')
+    CREATE INDEX Appointments_Id ON Appointments (Appointment_id) ON MonthlyScheme (Time);
+
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE object_id = OBJECT_ID('Appointments') AND name = 'Appointments_Slot')
+    CREATE UNIQUE INDEX Appointments_Slot ON Appointments (Time, Caregiver, Slot_minute)
+        WHERE Slot_minute IS NOT NULL ON MonthlyScheme (Time);
+GO
+
+-- An empty table with the same columns and indexes as Availabilities, for SlidePartitions to switch old partitions
+-- into; old appointments are switched into a table of their own for each month (003_switch_out_to_archive_tables)
+IF OBJECT_ID('AvailabilitiesSwitch') IS NULL
+    CREATE TABLE AvailabilitiesSwitch (
+        Time DATE,
+        Username VARCHAR(255),
+        CONSTRAINT AvailabilitiesSwitch_PK PRIMARY KEY (Time, Username)
+    ) ON [PRIMARY];
+
+IF OBJECT_ID('SchemaVersions') IS NULL
+    CREATE TABLE SchemaVersions (Version VARCHAR(64), Applied DATETIME2, PRIMARY KEY (Version));
+
+IF NOT EXISTS (SELECT 1 FROM SchemaVersions WHERE Version = '001_partition_by_month')
+    INSERT INTO SchemaVersions (Version, Applied) VALUES ('001_partition_by_month', SYSUTCDATETIME());
\ No newline at end of file
@@ -0,0 +1,7 @@
+-- Optional: a nonclustered columnstore index over the columns the monthly rollup groups by, so reporting scans read
+-- compressed column segments in batch mode instead of the rowstore pages reservations lock. It is aligned with
+-- MonthlyScheme, and SlidePartitions gives the tables it switches old months into the same index, since SWITCH needs
+-- identical indexes on both sides.
+-- Run with: migrate 002_appointments_columnstore
+CREATE NONCLUSTERED COLUMNSTORE INDEX Appointments_Columnstore ON Appointments (Time, Caregiver, Vaccine, Patient)
+    ON MonthlyScheme (Time);
\ No newline at end of file
@@ -0,0 +1,68 @@
+-- Switch old months of appointments out into a table of their own instead of copying them to AppointmentsArchive,
+-- so removing a month stays metadata-only; the shared AppointmentsSwitch staging table is no longer needed.
+DROP TABLE IF EXISTS AppointmentsSwitch;
+GO
+
+-- Sliding window over MonthlyPartitions. Adds a boundary for every month up to @Newest, so new dates never land in
+-- a partition that has to be split while it holds rows, and switches out every month before @Oldest, metadata-only:
+-- its availabilities go to AvailabilitiesSwitch and are truncated, and its appointments to a new table with the
+-- same columns and indexes as Appointments, AppointmentsArchive_<yyyymm>, which is kept if the archival job left
+-- any rows in it and dropped if not. Then the boundary is merged away. Returns the number of months added and
+-- removed.
+CREATE OR ALTER PROCEDURE SlidePartitions @Oldest DATE, @Newest DATE AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    DECLARE @boundary DATE, @added INT = 0, @removed INT = 0, @retired SYSNAME, @sql NVARCHAR(MAX);
+    SELECT @boundary = DATEADD(MONTH, 1, MAX(CAST(V.value AS DATE)))
+      FROM sys.partition_range_values V JOIN sys.partition_functions F ON F.function_id = V.function_id
+     WHERE F.name = 'MonthlyPartitions';
+    WHILE @boundary <= @Newest BEGIN
+        ALTER PARTITION SCHEME MonthlyScheme NEXT USED [PRIMARY];
+        ALTER PARTITION FUNCTION MonthlyPartitions() SPLIT RANGE (@boundary);
+        SET @boundary = DATEADD(MONTH, 1, @boundary);
+        SET @added += 1;
+    END
+    WHILE 1 = 1 BEGIN
+        -- partition 1 holds every date before the lowest boundary
+        SELECT @boundary = MIN(CAST(V.value AS DATE))
+          FROM sys.partition_range_values V JOIN sys.partition_functions F ON F.function_id = V.function_id
+         WHERE F.name = 'MonthlyPartitions';
+        IF @boundary IS NULL OR @boundary > @Oldest BREAK;
+        -- named after the last month in the partition, e.g. AppointmentsArchive_202412 for boundary 2025-01-01
+        SET @retired = N'AppointmentsArchive_' + CONVERT(CHAR(6), DATEADD(MONTH, -1, @boundary), 112);
+        BEGIN TRANSACTION;
+        -- SWITCH needs the same columns, identity and indexes on both sides, including the optional columnstore
+        SET @sql = N'CREATE TABLE ' + QUOTENAME(@retired) + N' (
+                Time DATE NOT NULL,
+                Caregiver VARCHAR(255),
+                Vaccine VARCHAR(255),
+                Patient VARCHAR(255),
+                Appointment_id INT IDENTITY(1,1),
+                Slot_minute INT NULL,
+                CONSTRAINT ' + QUOTENAME(@retired + N'_PK') + N' PRIMARY KEY (Time, Appointment_id)
+            ) ON [PRIMARY];
+            CREATE INDEX Id ON ' + QUOTENAME(@retired) + N' (Appointment_id);
+            CREATE UNIQUE INDEX Slot ON ' + QUOTENAME(@retired) + N' (Time, Caregiver, Slot_minute)
+                WHERE Slot_minute IS NOT NULL;';
+        IF EXISTS (SELECT 1 FROM sys.indexes
+                    WHERE object_id = OBJECT_ID('Appointments') AND name = 'Appointments_Columnstore')
+            SET @sql += N'CREATE NONCLUSTERED COLUMNSTORE INDEX Columnstore ON ' + QUOTENAME(@retired) +
+                        N' (Time, Caregiver, Vaccine, Patient);';
+        EXEC sp_executesql @sql;
+        -- the schema lock waits behind running queries without blocking the ones that arrive after it
+        SET @sql = N'ALTER TABLE Appointments SWITCH PARTITION 1 TO ' + QUOTENAME(@retired) +
+                   N' WITH (WAIT_AT_LOW_PRIORITY (MAX_DURATION = 1 MINUTES, ABORT_AFTER_WAIT = SELF));' +
+                   N' IF NOT EXISTS (SELECT 1 FROM ' + QUOTENAME(@retired) + N') DROP TABLE ' + QUOTENAME(@retired);
+        EXEC sp_executesql @sql;
+        ALTER TABLE Availabilities SWITCH PARTITION 1 TO AvailabilitiesSwitch
+            WITH (WAIT_AT_LOW_PRIORITY (MAX_DURATION = 1 MINUTES, ABORT_AFTER_WAIT = SELF));
+        TRUNCATE TABLE AvailabilitiesSwitch;
+        -- switching doesn't fire the DailyCapacity triggers; both counts of these dates are now zero
+        DELETE FROM DailyCapacity WHERE Time < @boundary;
+        ALTER PARTITION FUNCTION MonthlyPartitions() MERGE RANGE (@boundary);
+        COMMIT TRANSACTION;
+        SET @removed += 1;
+    END
+    SELECT @added AS Added, @removed AS Removed;
+END;
\ No newline at end of file
@@ -0,0 +1,14 @@
+-- Key IdempotencyKeys on the operation as well as the request ID, so reserve and cancel no longer collide on one
+-- key. The old primary key was created without a name.
+IF COLUMNPROPERTY(OBJECT_ID('IdempotencyKeys'), 'Operation', 'AllowsNull') = 1 BEGIN
+    DECLARE @sql NVARCHAR(MAX) = N'';
+    SELECT @sql += N'ALTER TABLE IdempotencyKeys DROP CONSTRAINT ' + QUOTENAME(name) + N'; '
+      FROM sys.key_constraints
+     WHERE type = 'PK' AND parent_object_id = OBJECT_ID('IdempotencyKeys');
+    EXEC sp_executesql @sql;
+    ALTER TABLE IdempotencyKeys ALTER COLUMN Operation VARCHAR(16) NOT NULL;
+END
+GO
+
+IF OBJECT_ID('IdempotencyKeys_PK') IS NULL
+    ALTER TABLE IdempotencyKeys ADD CONSTRAINT IdempotencyKeys_PK PRIMARY KEY (Username, Request_id, Operation);
\ No newline at end of file
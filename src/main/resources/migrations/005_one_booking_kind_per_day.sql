@@ -0,0 +1,5 @@
+-- A caregiver's day is now booked either whole or by the slot: booking a slot takes the caregiver's day-level
+-- availability. Take it from the caregivers who already have slot appointments on a day they are still available.
+DELETE Av FROM Availabilities Av
+ WHERE EXISTS (SELECT 1 FROM Appointments Ap
+                WHERE Ap.Time = Av.Time AND Ap.Caregiver = Av.Username AND Ap.Slot_minute IS NOT NULL);
\ No newline at end of file
@@ -1,20 +1,49 @@
 package scheduler;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Deadline;
+import scheduler.db.Migrator;
+import scheduler.db.RetryPolicy;
+import scheduler.model.AnalyticsReport;
 import scheduler.model.Appointment;
+import scheduler.model.AppointmentExport;
+import scheduler.model.Archiver;
 import scheduler.model.Caregiver;
+import scheduler.model.CaregiverSelector;
+import scheduler.model.DailyCapacity;
+import scheduler.model.MonthlyRollup;
+import scheduler.model.PartitionWindow;
 import scheduler.model.Patient;
+import scheduler.model.PendingWrite;
+import scheduler.model.ScheduleCache;
+import scheduler.model.SlotAllocator;
 import scheduler.model.Vaccine;
+import scheduler.model.Waitlist;
+import scheduler.util.EventJournal;
+import scheduler.util.HashAdmission;
+import scheduler.util.Metrics;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class Scheduler {
 
@@ -24,6 +53,28 @@ public class Scheduler {
     private static Caregiver currentCaregiver = null;
     private static Patient currentPatient = null;
 
+    // client request IDs are stored in IdempotencyKeys.Request_id
+    private static final int MAX_REQUEST_ID_LENGTH = 64;
+    // doses in a series when reserve_series is not given a count, and the most it accepts
+    private static final int SERIES_DOSES = 2;
+    private static final int MAX_SERIES_DOSES = 6;
+    // patients per reserve_group, which keeps its batch well under the 2100-parameter limit
+    private static final int MAX_GROUP_SIZE = 500;
+    // distinct vaccines per manifest; one MERGE row each, within SQL Server's 1000-row VALUES limit
+    private static final int MAX_MANIFEST_VACCINES = 1000;
+    // most dose counters stripe_vaccine splits a vaccine into
+    private static final int MAX_VACCINE_STRIPES = 64;
+    // how many times find_next_available ... reserve looks again after losing a slot to another patient
+    private static final int FIND_AND_RESERVE_ATTEMPTS = 3;
+    // time each command has before its statements are cancelled; $CommandDeadlineMillis overrides the default
+    private static final long COMMAND_DEADLINE_MILLIS = System.getenv("CommandDeadlineMillis") != null ?
+                                                        Long.parseLong(System.getenv("CommandDeadlineMillis")) : 10_000;
+    // reports, exports and schema maintenance scan whole tables, so they get longer
+    private static final long LONG_COMMAND_DEADLINE_MILLIS = 30 * 60_000;
+    private static final Set<String> LONG_COMMANDS = Set.of("report", "report_monthly", "export_appointments",
+                                                            "rebuild_daily_capacity", "check_daily_capacity",
+                                                            "migrate", "stripe_vaccine");
+
     private static void prompt() {
         System.out.println();
         System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
@@ -33,19 +84,45 @@ public class Scheduler {
         System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
         System.out.println("> login_caregiver <username> <password>");
         System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        System.out.println("> search_range <from_date> <to_date> [vaccine]");
+        System.out.println("> find_next_available <vaccine> [from_date] [reserve]");
+        System.out.println("> reserve <date> <vaccine> [request_id]");  // TODO: implement reserve (Part 2)
+        System.out.println("> reserve_series <vaccine> <first_date> <interval_days> [doses]");
+        System.out.println("> reserve_group <date> <vaccine> <patient1,patient2,...>");
+        System.out.println("> waitlist <date> <vaccine>");
         System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
+        System.out.println("> upload_window <date> <start HH:MM> <end HH:MM>");
+        System.out.println("> search_slots <date>");
+        System.out.println("> reserve_slot <date> <vaccine> [HH:MM]");
+        System.out.println("> mark_unavailable <from_date> [to_date]");
+        System.out.println("> set_caregiver_strategy <alphabetical|round_robin|least_booked|random>");
+        System.out.println("> cancel <appointment_id> [request_id]");  // TODO: implement cancel (extra credit)
         System.out.println("> add_doses <vaccine> <number>");
+        System.out.println("> add_doses_manifest <file>");
+        System.out.println("> stripe_vaccine <vaccine> <stripes>");
+        System.out.println("> rebuild_daily_capacity");
+        System.out.println("> check_daily_capacity");
+        System.out.println("> migrate [optional_migration]");
         System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
+        System.out.println("> show_history");
+        System.out.println("> export_appointments <file> [csv|columnar] [with_vaccines]");
+        System.out.println("> report <from_date> <to_date>");
+        System.out.println("> report_monthly <from_date> <to_date>");
+        System.out.println("> read_your_writes <on|off>");
+        System.out.println("> metrics");
         System.out.println("> logout");  // TODO: implement logout (Part 2)
         System.out.println("> quit");
         System.out.println();
     }
 
+    // the deadlines are only opened and closed here; the commands find them through Deadline.current()
+    @SuppressWarnings("try")
     public static void main(String[] args) {
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+        // move old appointments and availability out of the live tables in the background
+        Archiver.start();
+        PartitionWindow.start();
         while (true) {
             prompt();
             System.out.print("> ");
@@ -62,35 +139,84 @@ public class Scheduler {
                 System.out.println("Please try again!");
                 continue;
             }
+            // apply writes queued while the database was unreachable before running anything that might read them
+            try (Deadline replayDeadline = Deadline.start("replay_pending_writes", COMMAND_DEADLINE_MILLIS)) {
+                replayPendingWrites();
+            }
             // determine which operation to perform
             String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
-                return;
-            } else {
-                System.out.println("Invalid operation name!");
+            long millis = LONG_COMMANDS.contains(operation) ? LONG_COMMAND_DEADLINE_MILLIS : COMMAND_DEADLINE_MILLIS;
+            try (Deadline deadline = Deadline.start(operation, millis)) {
+                if (operation.equals("create_patient")) {
+                    createPatient(tokens);
+                } else if (operation.equals("create_caregiver")) {
+                    createCaregiver(tokens);
+                } else if (operation.equals("login_patient")) {
+                    loginPatient(tokens);
+                } else if (operation.equals("login_caregiver")) {
+                    loginCaregiver(tokens);
+                } else if (operation.equals("search_caregiver_schedule")) {
+                    searchCaregiverSchedule(tokens);
+                } else if (operation.equals("search_range")) {
+                    searchRange(tokens);
+                } else if (operation.equals("find_next_available")) {
+                    findNextAvailable(tokens);
+                } else if (operation.equals("reserve")) {
+                    reserve(tokens);
+                } else if (operation.equals("reserve_series")) {
+                    reserveSeries(tokens);
+                } else if (operation.equals("reserve_group")) {
+                    reserveGroup(tokens);
+                } else if (operation.equals("waitlist")) {
+                    waitlist(tokens);
+                } else if (operation.equals("upload_availability")) {
+                    uploadAvailability(tokens);
+                } else if (operation.equals("upload_window")) {
+                    uploadWindow(tokens);
+                } else if (operation.equals("search_slots")) {
+                    searchSlots(tokens);
+                } else if (operation.equals("reserve_slot")) {
+                    reserveSlot(tokens);
+                } else if (operation.equals("mark_unavailable")) {
+                    markUnavailable(tokens);
+                } else if (operation.equals("set_caregiver_strategy")) {
+                    setCaregiverStrategy(tokens);
+                } else if (operation.equals("cancel")) {
+                    cancel(tokens);
+                } else if (operation.equals("add_doses")) {
+                    addDoses(tokens);
+                } else if (operation.equals("add_doses_manifest")) {
+                    addDosesManifest(tokens);
+                } else if (operation.equals("stripe_vaccine")) {
+                    stripeVaccine(tokens);
+                } else if (operation.equals("rebuild_daily_capacity")) {
+                    rebuildDailyCapacity(tokens);
+                } else if (operation.equals("check_daily_capacity")) {
+                    checkDailyCapacity(tokens);
+                } else if (operation.equals("migrate")) {
+                    migrate(tokens);
+                } else if (operation.equals("show_appointments")) {
+                    showAppointments(tokens);
+                } else if (operation.equals("show_history")) {
+                    showHistory(tokens);
+                } else if (operation.equals("export_appointments")) {
+                    exportAppointments(tokens);
+                } else if (operation.equals("report")) {
+                    report(tokens);
+                } else if (operation.equals("report_monthly")) {
+                    reportMonthly(tokens);
+                } else if (operation.equals("read_your_writes")) {
+                    readYourWrites(tokens);
+                } else if (operation.equals("metrics")) {
+                    metrics(tokens);
+                } else if (operation.equals("logout")) {
+                    logout(tokens);
+                } else if (operation.equals("quit")) {
+                    System.out.println("Bye!");
+                    return;
+                } else {
+                    System.out.println("Invalid operation name!");
+                }
             }
         }
     }
@@ -120,7 +246,13 @@ public class Scheduler {
             return;
         }
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash;
+        try {
+            hash = HashAdmission.generateHash(password, salt);
+        } catch (HashAdmission.BusyException e) {
+            System.out.println("Busy, retry in " + e.getRetryAfterMillis() + " ms");
+            return;
+        }
         // create the patient
         try {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
@@ -157,7 +289,13 @@ public class Scheduler {
             return;
         }
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash;
+        try {
+            hash = HashAdmission.generateHash(password, salt);
+        } catch (HashAdmission.BusyException e) {
+            System.out.println("Busy, retry in " + e.getRetryAfterMillis() + " ms");
+            return;
+        }
         // create the caregiver
         try {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
@@ -188,10 +326,10 @@ public class Scheduler {
 
     private static boolean usernameExists(String username, String table) {
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
         String selectUsername = "SELECT * FROM " + table + " WHERE Username = ?";
         try {
+            Connection con = cm.createConnection();
             PreparedStatement statement = con.prepareStatement(selectUsername);
             statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
@@ -225,6 +363,9 @@ public class Scheduler {
         Patient patient = null;
         try {
             patient = new Patient.PatientGetter(username, password).get();
+        } catch (HashAdmission.BusyException e) {
+            System.out.println("Busy, retry in " + e.getRetryAfterMillis() + " ms");
+            return;
         } catch (SQLException e) {
             System.out.println("Login failed.");
             e.printStackTrace();
@@ -257,6 +398,9 @@ public class Scheduler {
         Caregiver caregiver = null;
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
+        } catch (HashAdmission.BusyException e) {
+            System.out.println("Busy, retry in " + e.getRetryAfterMillis() + " ms");
+            return;
         } catch (SQLException e) {
             System.out.println("Login failed.");
             e.printStackTrace();
@@ -285,24 +429,111 @@ public class Scheduler {
             return;
         }
         Date date = Date.valueOf(tokens[1]);
-        // Initiate connection to database
+        // Caregivers for the date and vaccines with doses are cached separately, since dose changes affect every date.
+        // A past date can't be booked, so it has no caregivers even before the archiver purges its availability.
+        List<String> caregivers = isPast(date) ? List.of() : ScheduleCache.caregivers.get(date);
+        List<String> vaccines = ScheduleCache.getVaccines();
+        if (caregivers == null || vaccines == null) {
+            // Misses are filled from the primary: a lagging replica would put the state from before a write back in
+            // the cache right after the write invalidated it, for the whole TTL. The hits take the load off instead.
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                Connection con = cm.createConnection();
+                if (caregivers == null) {
+                    long stamp = ScheduleCache.caregivers.stamp();
+                    String selectUsernames = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username ASC";
+                    PreparedStatement usernameStatement = con.prepareStatement(selectUsernames);
+                    usernameStatement.setDate(1, date);
+                    ResultSet usernameSet = usernameStatement.executeQuery();
+                    caregivers = new ArrayList<>();
+                    while (usernameSet.next()) {
+                        caregivers.add(usernameSet.getString("Username"));
+                    }
+                    caregivers = Collections.unmodifiableList(caregivers);
+                    ScheduleCache.caregivers.put(date, caregivers, stamp);
+                }
+                if (vaccines == null) {
+                    long stamp = ScheduleCache.vaccines.stamp();
+                    String selectVaccines = "SELECT Name, Doses FROM VaccineInventory WHERE Doses > 0";
+                    PreparedStatement vaccineStatement = con.prepareStatement(selectVaccines);
+                    ResultSet vaccineSet = vaccineStatement.executeQuery();
+                    vaccines = new ArrayList<>();
+                    while (vaccineSet.next()) {
+                        vaccines.add(vaccineSet.getString("Name") + " " + vaccineSet.getInt("Doses"));
+                    }
+                    vaccines = Collections.unmodifiableList(vaccines);
+                    ScheduleCache.putVaccines(vaccines, stamp);
+                }
+            } catch (SQLException e) {
+                System.out.println("Please try again!");
+                e.printStackTrace();
+                return;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+        // Print combos of caregivers, vaccines and doses
+        for (String caregiver : caregivers) {
+            for (String vaccine : vaccines) {
+                System.out.println(caregiver + " " + vaccine);
+            }
+        }
+    }
+
+    private static void searchRange(String[] tokens) {
+        // search_range <from_date> <to_date> [vaccine]
+        // check 1: either a caregiver or patient must be logged in first
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 3, or 4 with a vaccine (with the operation name)
+        if (tokens.length != 3 && tokens.length != 4) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[1]);
+            to = Date.valueOf(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        if (to.before(from)) {
+            System.out.println("Please enter a valid date range!");
+            return;
+        }
+        // past dates can't be booked; their availability lingers until the archiver purges it
+        if (isPast(from)) {
+            from = Date.valueOf(LocalDate.now());
+        }
+        String vaccine = tokens.length == 4 ? tokens[3] : null;
+        // Initiate connection to the read-only data source
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        try {
-            // Get combo set
-            String selectUsernames = "SELECT A.Username, V.Name, V.Doses " +
-                                       "FROM Availabilities A, Vaccines V " +
-                                      "WHERE A.Time = ? AND V.Doses > 0 " +
-                                      "ORDER BY A.Username ASC ";
-            PreparedStatement joinStatement = con.prepareStatement(selectUsernames);
-            joinStatement.setDate(1, date);
-            ResultSet availableCombos = joinStatement.executeQuery();
-            // Print combos of caregivers, vaccines and doses
-            while (availableCombos.next()) {
-                String caregiver = availableCombos.getString("Username");
-                String vaccine = availableCombos.getString("Name");
-                int doses = availableCombos.getInt("Doses");
-                System.out.println(caregiver + " " + vaccine + " " + doses);
+        try {
+            Connection con = cm.createReadConnection();
+            // One row per date: a range seek on the Time key of DailyCapacity, which already holds the free caregivers
+            // of each date, with the doses of the requested vaccine (or of all vaccines) attached to each row
+            String selectDays = "SELECT C.Time, C.FreeCaregivers, D.Doses " +
+                                  "FROM DailyCapacity C " +
+                                 "CROSS JOIN (SELECT COALESCE(SUM(Doses), 0) AS Doses FROM VaccineInventory " +
+                                             "WHERE ? IS NULL OR Name = ?) D " +
+                                 "WHERE C.Time BETWEEN ? AND ? AND C.FreeCaregivers > 0 " +
+                                 "ORDER BY C.Time ASC";
+            PreparedStatement dayStatement = con.prepareStatement(selectDays);
+            dayStatement.setString(1, vaccine);
+            dayStatement.setString(2, vaccine);
+            dayStatement.setDate(3, from);
+            dayStatement.setDate(4, to);
+            ResultSet days = dayStatement.executeQuery();
+            // Print each date with free caregivers
+            while (days.next()) {
+                String date = days.getDate("Time").toString();
+                int caregivers = days.getInt("FreeCaregivers");
+                String doses = days.getInt("Doses") > 0 ? "doses available" : "no doses";
+                System.out.println(date + " " + caregivers + " " + doses);
             }
         } catch (SQLException e) {
             System.out.println("Please try again!");
@@ -312,9 +543,113 @@ public class Scheduler {
         }
     }
 
+    private static void findNextAvailable(String[] tokens) {
+        // find_next_available <vaccine> [from_date] [reserve]
+        // check 1: either a caregiver or patient must be logged in first
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        }
+        // check 2: the length for tokens need to be between 2 and 4 (with the operation name)
+        if (tokens.length < 2 || tokens.length > 4) {
+            System.out.println("Please try again!");
+            return;
+        }
+        String vaccine = tokens[1];
+        Date from = Date.valueOf(LocalDate.now());
+        boolean reserve = false;
+        for (int i = 2; i < tokens.length; i++) {
+            if (tokens[i].equals("reserve")) {
+                reserve = true;
+            } else {
+                try {
+                    from = Date.valueOf(tokens[i]);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Please enter a valid date!");
+                    return;
+                }
+            }
+        }
+        // check 3: only patients can reserve the slot that was found
+        if (reserve && currentPatient == null) {
+            System.out.println("Please login as a patient!");
+            return;
+        }
+        // a slot can be taken between finding and reserving it, so search again from that date a few times
+        for (int attempt = 0; attempt < FIND_AND_RESERVE_ATTEMPTS; attempt++) {
+            Date next;
+            try {
+                next = findNextAvailableDate(vaccine, from);
+            } catch (SQLException e) {
+                System.out.println("Please try again!");
+                e.printStackTrace();
+                return;
+            }
+            if (next == null) {
+                System.out.println("No open slots found!");
+                return;
+            }
+            if (!reserve) {
+                System.out.println("Next available date: " + next);
+                return;
+            }
+            Appointment.AppointmentReserver reserver = new Appointment.AppointmentReserver(next, vaccine,
+                                                                                           currentPatient.getUsername());
+            Appointment appt;
+            try {
+                appt = RetryPolicy.run("reserve", reserver::reserve);
+            } catch (SQLException e) {
+                System.out.println(failureMessage(e, "Please try again!"));
+                e.printStackTrace();
+                return;
+            }
+            if (appt != null) {
+                ConnectionManager.recordWrite();
+                journal(EventJournal.APPOINTMENT_RESERVED, appt);
+                System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: "
+                                   + appt.getCaregiver() + ", Date: " + appt.getTime());
+                return;
+            } else if (!reserver.dosesAvailable()) {
+                System.out.println("Not enough available doses!");
+                return;
+            }
+            from = next;
+        }
+        System.out.println("Please try again!");
+    }
+
+    // Earliest date on or after from, and not in the past, with a free caregiver, provided the vaccine has doses; null
+    // if there is none
+    private static Date findNextAvailableDate(String vaccine, Date from) throws SQLException {
+        if (isPast(from)) {
+            from = Date.valueOf(LocalDate.now());
+        }
+        // Initiate connection to the read-only data source
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createReadConnection();
+            // TOP (1) ... ORDER BY Time is a single seek on the Time primary key of DailyCapacity
+            String selectNext = "SELECT TOP (1) C.Time FROM DailyCapacity C " +
+                                 "WHERE C.Time >= ? AND C.FreeCaregivers > 0 " +
+                                   "AND EXISTS (SELECT 1 FROM VaccineInventory V WHERE V.Name = ? AND V.Doses > 0) " +
+                                 "ORDER BY C.Time ASC";
+            PreparedStatement nextStatement = con.prepareStatement(selectNext);
+            nextStatement.setDate(1, from);
+            nextStatement.setString(2, vaccine);
+            ResultSet next = nextStatement.executeQuery();
+            return next.next() ? next.getDate("Time") : null;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static boolean isPast(Date date) {
+        return date.toLocalDate().isBefore(LocalDate.now());
+    }
+
     private static void reserve(String[] tokens) {
         // TODO: Part 2
-        // reserve <date> <vaccine>
+        // reserve <date> <vaccine> [request_id]
         // check 1: a patient must be logged in first
         if (currentCaregiver == null && currentPatient == null) {
             System.out.println("Please login first!");
@@ -323,215 +658,889 @@ public class Scheduler {
             System.out.println("Please login as a patient!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
+        // check 2: the length for tokens need to be 3, or 4 with a client request ID (with the operation name)
+        if (tokens.length != 3 && tokens.length != 4) {
             System.out.println("Please try again!");
             return;
         }
-        Date time = Date.valueOf(tokens[1]);
+        Date time;
+        try {
+            time = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
         String vaccine = tokens[2];
-        // Initiate connection to database
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        try {
-            // Get sets
-            // Times and caregivers
-            String selectUsernames = "SELECT * FROM Availabilities WHERE Time = ? ORDER BY Username ASC";
-            PreparedStatement usernameStatement = con.prepareStatement(selectUsernames);
-            usernameStatement.setDate(1, time);
-            ResultSet usernameSet = usernameStatement.executeQuery();
-            // Vaccine doses
-            String selectVaccines = "SELECT * FROM Vaccines WHERE Name = ? AND Doses > 0";
-            PreparedStatement vaccineStatement = con.prepareStatement(selectVaccines);
-            vaccineStatement.setString(1, vaccine);
-            ResultSet vaccineSet = vaccineStatement.executeQuery();
-            // check 3: make sure there is a caregiver and vaccine available for the appointment
-            if (!usernameSet.isBeforeFirst()) {
-                System.out.println("No Caregiver is available!");
-                return;
-            } else if (!vaccineSet.isBeforeFirst()) {
-                System.out.println("Not enough available doses!");
-                return;
-            }
-            // Select caregiver
-            usernameSet.next();
-            String caregiver = usernameSet.getString("Username");
-            // Remove availability
-            String removeAvailability = "DELETE FROM Availabilities WHERE Username = ? AND TIME = ?";
-            PreparedStatement removeStatement = con.prepareStatement(removeAvailability);
-            removeStatement.setString(1, caregiver);
-            removeStatement.setDate(2, time);
-            removeStatement.executeUpdate();
-            // Remove dose from vaccine
-            Vaccine vaccineDoses = new Vaccine.VaccineGetter(vaccine).get();
-            vaccineDoses.decreaseAvailableDoses(1);
-            // Create appointment
-            Appointment appt = new Appointment.AppointmentBuilder(time, caregiver, vaccine,
-                                                                  currentPatient.getUsername()).build();
-            // Print information
-            System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: " + caregiver);
+        String requestID = tokens.length == 4 ? tokens[3] : null;
+        if (requestID != null && requestID.length() > MAX_REQUEST_ID_LENGTH) {
+            System.out.println("Request ID is too long!");
+            return;
+        }
+        // Claim a caregiver and a dose and create the appointment in one transaction, retried on transient errors.
+        // With a request ID, a retry of a request that already succeeded returns the original appointment.
+        Appointment.AppointmentReserver reserver = new Appointment.AppointmentReserver(time, vaccine,
+                                                                                       currentPatient.getUsername(),
+                                                                                       requestID);
+        Appointment appt;
+        try {
+            appt = RetryPolicy.run("reserve", requestID != null, reserver::reserve);
         } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Please try again!"));
+            e.printStackTrace();
+            return;
+        }
+        // check 3: the request ID must not belong to a live cancel request
+        if (reserver.reusedFor() != null) {
+            System.out.println("Request ID " + requestID + " was already used to " + reserver.reusedFor()
+                               + "; please use a new one!");
+            return;
+        }
+        // check 4: make sure there is a caregiver and vaccine available for the appointment
+        if (!reserver.caregiverAvailable()) {
+            System.out.println("No Caregiver is available!");
+            return;
+        } else if (!reserver.dosesAvailable()) {
+            System.out.println("Not enough available doses!");
+            return;
+        }
+        if (reserver.isReplayed()) {
+            Metrics.increment("idempotency.reserve.replayed");
+        } else {
+            journal(EventJournal.APPOINTMENT_RESERVED, appt);
+        }
+        // Print information
+        ConnectionManager.recordWrite();
+        System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: " + appt.getCaregiver());
+    }
+
+    private static void reserveSeries(String[] tokens) {
+        // reserve_series <vaccine> <first_date> <interval_days> [doses]
+        // check 1: a patient must be logged in first
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        } else if (currentPatient == null) {
+            System.out.println("Please login as a patient!");
+            return;
+        }
+        // check 2: the length for tokens need to be 4, or 5 with a number of doses (with the operation name)
+        if (tokens.length != 4 && tokens.length != 5) {
+            System.out.println("Please try again!");
+            return;
+        }
+        String vaccine = tokens[1];
+        Date firstDate;
+        try {
+            firstDate = Date.valueOf(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        int intervalDays;
+        int doses;
+        try {
+            intervalDays = Integer.parseInt(tokens[3]);
+            doses = tokens.length == 5 ? Integer.parseInt(tokens[4]) : SERIES_DOSES;
+        } catch (NumberFormatException e) {
             System.out.println("Please try again!");
+            return;
+        }
+        if (intervalDays <= 0 || doses <= 0 || doses > MAX_SERIES_DOSES) {
+            System.out.println("Please enter a positive interval and between 1 and " + MAX_SERIES_DOSES + " doses!");
+            return;
+        }
+        // All doses are booked in one transaction, or none are
+        Appointment.AppointmentSeriesReserver reserver = new Appointment.AppointmentSeriesReserver(
+                vaccine, currentPatient.getUsername(), firstDate, intervalDays, doses);
+        List<Appointment> appts;
+        try {
+            appts = RetryPolicy.run("reserve_series", reserver::reserve);
+        } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Please try again!"));
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            return;
+        }
+        // check 3: make sure every dose of the series could be booked
+        if (appts == null) {
+            if (!reserver.caregiverAvailable()) {
+                System.out.println("No Caregiver is available on " + reserver.getFailedDate() + "!");
+            } else {
+                System.out.println("Not enough available doses for the series!");
+            }
+            return;
+        }
+        ConnectionManager.recordWrite();
+        for (Appointment appt : appts) {
+            journal(EventJournal.APPOINTMENT_RESERVED, appt);
+            System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: "
+                               + appt.getCaregiver() + ", Date: " + appt.getTime());
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
-        // check 1: check if the current logged-in user is a caregiver
+    private static void reserveGroup(String[] tokens) {
+        // reserve_group <date> <vaccine> <patient1,patient2,...>
+        // check 1: a caregiver books on behalf of the group
         if (currentCaregiver == null) {
             System.out.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
+        // check 2: the length for tokens need to be exactly 4 to include all information (with the operation name)
+        if (tokens.length != 4) {
             System.out.println("Please try again!");
             return;
         }
-        String date = tokens[1];
+        Date time;
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            time = Date.valueOf(tokens[1]);
         } catch (IllegalArgumentException e) {
             System.out.println("Please enter a valid date!");
+            return;
+        }
+        String vaccine = tokens[2];
+        List<String> patients = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(tokens[3].split(","))));
+        patients.remove("");
+        if (patients.isEmpty() || patients.size() > MAX_GROUP_SIZE) {
+            System.out.println("Please enter between 1 and " + MAX_GROUP_SIZE + " patients!");
+            return;
+        }
+        // Everyone is placed in one transaction, or no one is
+        Appointment.AppointmentGroupReserver reserver = new Appointment.AppointmentGroupReserver(time, vaccine, patients);
+        List<Appointment> appts;
+        try {
+            appts = RetryPolicy.run("reserve_group", reserver::reserve);
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            System.out.println(failureMessage(e, "Please try again!"));
             e.printStackTrace();
+            return;
+        }
+        // check 3: every username must be a patient and everyone must fit
+        if (appts == null) {
+            if (reserver.getUnknownPatients() > 0) {
+                System.out.println(reserver.getUnknownPatients() + " of the usernames are not patients!");
+            } else {
+                System.out.println("Only " + reserver.getPlaceable() + " of " + patients.size()
+                                   + " patients could be placed, nothing was reserved!");
+            }
+            return;
+        }
+        ConnectionManager.recordWrite();
+        for (Appointment appt : appts) {
+            journal(EventJournal.APPOINTMENT_RESERVED, appt);
+            System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: "
+                               + appt.getCaregiver() + ", Patient username: " + appt.getPatient());
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
-        // cancel <appointment_id>
-        // check 1: either a caregiver or patient must be logged in first
+    private static void waitlist(String[] tokens) {
+        // waitlist <date> <vaccine>
+        // check 1: a patient must be logged in first
         if (currentCaregiver == null && currentPatient == null) {
             System.out.println("Please login first!");
             return;
+        } else if (currentPatient == null) {
+            System.out.println("Please login as a patient!");
+            return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date time;
+        try {
+            time = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        String vaccine = tokens[2];
+        // check 3: the vaccine must exist to be waitlisted for
+        try {
+            if (new Vaccine.VaccineGetter(vaccine).get() == null) {
+                System.out.println("Vaccine does not exist!");
+                return;
+            }
+        } catch (SQLException e) {
             System.out.println("Please try again!");
+            e.printStackTrace();
             return;
         }
-        int appointmentID = Integer.parseInt(tokens[1]);
-        Appointment appt = null;
+        Waitlist entry;
         try {
-            appt = new Appointment.AppointmentGetter(appointmentID).get();
+            Waitlist.WaitlistBuilder builder = new Waitlist.WaitlistBuilder(time, vaccine, currentPatient.getUsername());
+            entry = RetryPolicy.run("waitlist", builder::build);
         } catch (SQLException e) {
-            System.out.println("Error occurred when retrieving appointment");
+            System.out.println(failureMessage(e, "Already waitlisted or please try again!"));
             e.printStackTrace();
             return;
         }
-        // check 3: if getter returns null, it means the appointment doesn't exist
-        if (appt == null) {
-            System.out.println("No appointments with that ID exist");
+        ConnectionManager.recordWrite();
+        System.out.println("Waitlisted for " + vaccine + " on " + time + " at position " + entry.getPosition());
+        // capacity may already be free, so try to place the patient right away
+        drainWaitlist(time, vaccine);
+    }
+
+    // Journal an appointment event with the appointment as it is after the event
+    private static void journal(String event, Appointment appt) {
+        EventJournal.record(event, appt.getAppointmentID(), appt.getTime(), appt.getCaregiver(), appt.getVaccine(),
+                            appt.getPatient());
+    }
+
+    // What to tell the user when a command failed: message, unless the connection broke after the command was sent,
+    // in which case trying again blindly could apply it twice
+    private static String failureMessage(SQLException e, String message) {
+        if (e instanceof RetryPolicy.OutcomeUnknownException) {
+            return "Lost the connection to the database; this may have been applied, please check before trying again!";
+        }
+        return message;
+    }
+
+    private static void replayPendingWrites() {
+        List<PendingWrite> applied;
+        try {
+            applied = PendingWrite.replay();
+        } catch (SQLException | IOException e) {
+            System.out.println("Error occurred when applying pending writes");
+            e.printStackTrace();
             return;
         }
-        // check 4: make sure the appointment they're canceling is related to them
-        if ((currentCaregiver != null && !appt.getCaregiver().equals(currentCaregiver.getUsername()))
-            || (currentPatient != null && !appt.getPatient().equals(currentPatient.getUsername()))) {
-            System.out.println("You do not have access to cancel this appointment.");
+        if (applied.isEmpty()) {
             return;
         }
-        // Initiate connection to database
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        try {
-            // Remove appointment
-            String removeAppointment = "Delete FROM Appointments WHERE TIME = ? AND Caregiver = ?";
-            PreparedStatement appointmentStatement = con.prepareStatement(removeAppointment);
-            appointmentStatement.setDate(1, appt.getTime());
-            appointmentStatement.setString(2, appt.getCaregiver());
-            appointmentStatement.executeUpdate();
-            // Add availability
-            String addAvailability = "Insert INTO Availabilities VALUES (?, ?)";
-            PreparedStatement addStatement = con.prepareStatement(addAvailability);
-            addStatement.setDate(1, appt.getTime());
-            addStatement.setString(2, appt.getCaregiver());
-            addStatement.executeUpdate();
-            // Add dose to vaccine
-            Vaccine vaccineDoses = new Vaccine.VaccineGetter(appt.getVaccine()).get();
-            vaccineDoses.increaseAvailableDoses(1);
+        ConnectionManager.recordWrite();
+        for (PendingWrite write : applied) {
+            if (write.getOperation().equals(PendingWrite.UPLOAD_AVAILABILITY)) {
+                EventJournal.record(EventJournal.AVAILABILITY_UPLOADED, write.getName(), write.getTime());
+            } else {
+                EventJournal.record(EventJournal.DOSES_CHANGED, write.getName(), write.getDoses());
+            }
+        }
+        System.out.println("Applied " + applied.size() + " pending write(s)");
+        drainWaitlist(null, null);
+    }
+
+    private static void drainWaitlist(Date time, String vaccine) {
+        // assign waitlisted patients to any capacity freed up by the last command
+        try {
+            List<Appointment> appts = RetryPolicy.run("drain_waitlist", true, () -> Waitlist.drain(time, vaccine));
+            if (!appts.isEmpty()) {
+                ConnectionManager.recordWrite();
+                for (Appointment appt : appts) {
+                    journal(EventJournal.APPOINTMENT_RESERVED, appt);
+                }
+                System.out.println("Assigned " + appts.size() + " waitlisted patient(s)");
+            }
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            System.out.println("Error occurred when assigning waitlisted patients");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
-        System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: " + appt.getCaregiver()
-                           + ", Patient username: " + appt.getPatient());
     }
 
-    private static void addDoses(String[] tokens) {
-        // add_doses <vaccine> <number>
+    private static void uploadAvailability(String[] tokens) {
+        // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
             System.out.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
             System.out.println("Please try again!");
             return;
         }
-        String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        Date d;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
-            e.printStackTrace();
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
+        // stored with the upload, so an attempt whose reply was lost is neither repeated nor queued twice
+        PendingWrite write = PendingWrite.availability(currentCaregiver.getUsername(), d);
+        try {
+            RetryPolicy.run("upload_availability", true, () -> {
+                currentCaregiver.uploadAvailability(d, write.getWriteID());
+                return null;
+            });
+        } catch (SQLException e) {
+            // while the database is unreachable the upload is queued locally and applied once it is back
+            PendingWrite.Outcome outcome = PendingWrite.Outcome.FAILED;
             try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+                outcome = write.settle(e);
+            } catch (IOException ioException) {
+                ioException.printStackTrace();
             }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+            if (outcome == PendingWrite.Outcome.QUEUED) {
+                System.out.println("Database unreachable, availability upload pending");
+                return;
+            }
+            if (outcome == PendingWrite.Outcome.FAILED) {
+                System.out.println("Error occurred when uploading availability");
                 e.printStackTrace();
+                return;
             }
+            // the upload committed before the connection broke
         }
-        System.out.println("Doses updated!");
+        ConnectionManager.recordWrite();
+        EventJournal.record(EventJournal.AVAILABILITY_UPLOADED, currentCaregiver.getUsername(), d);
+        System.out.println("Availability uploaded!");
+        drainWaitlist(d, null);
     }
 
-    private static void showAppointments(String[] tokens) {
-        // TODO: Part 2
-        // show_appointments
-        // check 1: check if user is logged in as either a patient or caregiver
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void uploadWindow(String[] tokens) {
+        // upload_window <date> <start HH:MM> <end HH:MM>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 1 since extra no info necessary
-        if (tokens.length != 1) {
+        // check 2: the length for tokens need to be exactly 4 to include all information (with the operation name)
+        if (tokens.length != 4) {
             System.out.println("Please try again!");
             return;
         }
-        // Initiate connection to database
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        Date d;
         try {
-            // Setup up constants to work with both caregivers and patients
-            String columnInput = currentCaregiver != null ? "Caregiver" : "Patient";
-            String name = currentCaregiver != null ? currentCaregiver.getUsername() : currentPatient.getUsername();
-            String columnOutput = currentCaregiver != null ? "Patient" : "Caregiver";
-            // Get data
-            String getAppts = "SELECT * FROM Appointments WHERE " + columnInput + " = ? ORDER BY Appointment_id ASC";
-            PreparedStatement apptStatement = con.prepareStatement(getAppts);
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        // check 3: the window must be on the slot grid and not empty
+        int start = SlotAllocator.parseMinute(tokens[2]);
+        int end = SlotAllocator.parseMinute(tokens[3]);
+        if (start < 0 || end < 0 || start >= end) {
+            System.out.println("Please enter a valid window, in HH:MM on a " + SlotAllocator.SLOT_MINUTES
+                               + "-minute grid!");
+            return;
+        }
+        try {
+            RetryPolicy.run("upload_window", () -> {
+                currentCaregiver.uploadWindow(d, start, end);
+                return null;
+            });
+            ConnectionManager.recordWrite();
+            EventJournal.record(EventJournal.AVAILABILITY_UPLOADED, currentCaregiver.getUsername(), d,
+                                SlotAllocator.formatMinute(start), SlotAllocator.formatMinute(end));
+            System.out.println("Working window uploaded!");
+        } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Error occurred when uploading working window"));
+            e.printStackTrace();
+        }
+    }
+
+    private static void searchSlots(String[] tokens) {
+        // search_slots <date>
+        // check 1: either a caregiver or patient must be logged in first
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date date;
+        try {
+            date = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        // Initiate connection to the read-only data source
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createReadConnection();
+            // Print every slot start with the number of caregivers free then
+            int[] free = SlotAllocator.freeCaregiversPerSlot(con, date);
+            for (int slot = 0; slot < free.length; slot++) {
+                if (free[slot] > 0) {
+                    System.out.println(SlotAllocator.formatMinute(slot * SlotAllocator.SLOT_MINUTES) + " " + free[slot]);
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void reserveSlot(String[] tokens) {
+        // reserve_slot <date> <vaccine> [HH:MM]
+        // check 1: a patient must be logged in first
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        } else if (currentPatient == null) {
+            System.out.println("Please login as a patient!");
+            return;
+        }
+        // check 2: the length for tokens need to be 3, or 4 with a time (with the operation name)
+        if (tokens.length != 3 && tokens.length != 4) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date time;
+        try {
+            time = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        String vaccine = tokens[2];
+        int minute = tokens.length == 4 ? SlotAllocator.parseMinute(tokens[3]) : -1;
+        if (tokens.length == 4 && (minute < 0 || minute >= 24 * 60)) {
+            System.out.println("Please enter a valid time, in HH:MM on a " + SlotAllocator.SLOT_MINUTES
+                               + "-minute grid!");
+            return;
+        }
+        Appointment.AppointmentSlotReserver reserver = new Appointment.AppointmentSlotReserver(time, vaccine,
+                                                                                               currentPatient.getUsername(),
+                                                                                               minute);
+        Appointment appt;
+        try {
+            appt = RetryPolicy.run("reserve_slot", reserver::reserve);
+        } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Please try again!"));
+            e.printStackTrace();
+            return;
+        }
+        // check 3: make sure there is a free slot and vaccine available for the appointment
+        if (!reserver.dosesAvailable()) {
+            System.out.println("Not enough available doses!");
+            return;
+        } else if (!reserver.slotAvailable()) {
+            System.out.println("No slot is available!");
+            return;
+        }
+        ConnectionManager.recordWrite();
+        journal(EventJournal.APPOINTMENT_RESERVED, appt);
+        System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: " + appt.getCaregiver()
+                           + ", Time: " + SlotAllocator.formatMinute(appt.getSlotMinute()));
+    }
+
+    private static void markUnavailable(String[] tokens) {
+        // mark_unavailable <from_date> [to_date]
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 2 or 3 (with the operation name)
+        if (tokens.length != 2 && tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[1]);
+            to = tokens.length == 3 ? Date.valueOf(tokens[2]) : from;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        if (to.before(from)) {
+            System.out.println("Please enter a valid date range!");
+            return;
+        }
+        Caregiver.Reassignment result;
+        try {
+            result = RetryPolicy.run("mark_unavailable", () -> currentCaregiver.markUnavailable(from, to));
+        } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Error occurred when marking unavailability"));
+            e.printStackTrace();
+            return;
+        }
+        ConnectionManager.recordWrite();
+        System.out.println("Marked unavailable from " + from + " to " + to);
+        System.out.println("Moved " + result.getMoved().size() + " appointment(s):");
+        for (Appointment appt : result.getMoved()) {
+            journal(EventJournal.APPOINTMENT_REASSIGNED, appt);
+            System.out.println(appt.getAppointmentID() + " " + appt.getTime() + " " + appt.getPatient()
+                               + " -> " + appt.getCaregiver());
+        }
+        System.out.println("Cancelled " + result.getCancelled().size() + " appointment(s):");
+        for (Appointment appt : result.getCancelled()) {
+            journal(EventJournal.APPOINTMENT_CANCELLED, appt);
+            System.out.println(appt.getAppointmentID() + " " + appt.getTime() + " " + appt.getPatient());
+        }
+        // restored doses may let waitlisted patients on other dates be placed
+        Set<String> vaccines = new HashSet<>();
+        for (Appointment appt : result.getCancelled()) {
+            vaccines.add(appt.getVaccine());
+        }
+        for (String vaccine : vaccines) {
+            drainWaitlist(null, vaccine);
+        }
+    }
+
+    private static void setCaregiverStrategy(String[] tokens) {
+        // set_caregiver_strategy <alphabetical|round_robin|least_booked|random>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            System.out.println("Please try again!");
+            return;
+        }
+        CaregiverSelector selector = CaregiverSelector.forName(tokens[1]);
+        if (selector == null) {
+            System.out.println("Unknown strategy!");
+            return;
+        }
+        CaregiverSelector.setCurrent(selector);
+        System.out.println("Caregiver strategy set to " + selector.getName());
+    }
+
+    private static void cancel(String[] tokens) {
+        // TODO: Extra credit
+        // cancel <appointment_id> [request_id]
+        // check 1: either a caregiver or patient must be logged in first
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 2, or 3 with a client request ID (with the operation name)
+        if (tokens.length != 2 && tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        int appointmentID;
+        try {
+            appointmentID = Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Please try again!");
+            return;
+        }
+        boolean isCaregiver = currentCaregiver != null;
+        String username = isCaregiver ? currentCaregiver.getUsername() : currentPatient.getUsername();
+        // Cancel only if the appointment is related to the current user; availability and doses are restored
+        // in the same transaction
+        String requestID = tokens.length == 3 ? tokens[2] : null;
+        if (requestID != null && requestID.length() > MAX_REQUEST_ID_LENGTH) {
+            System.out.println("Request ID is too long!");
+            return;
+        }
+        Appointment.AppointmentCanceller canceller = new Appointment.AppointmentCanceller(appointmentID, username,
+                                                                                          isCaregiver, requestID);
+        Appointment appt;
+        try {
+            appt = RetryPolicy.run("cancel", requestID != null, canceller::cancel);
+        } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Please try again!"));
+            e.printStackTrace();
+            return;
+        }
+        // check 3: if nothing was cancelled, the request ID belongs to a live reserve request, or the appointment
+        // either doesn't exist or isn't related to them
+        if (appt == null) {
+            if (canceller.reusedFor() != null) {
+                System.out.println("Request ID " + requestID + " was already used to " + canceller.reusedFor()
+                                   + "; please use a new one!");
+            } else if (canceller.exists()) {
+                System.out.println("You do not have access to cancel this appointment.");
+            } else {
+                System.out.println("No appointments with that ID exist");
+            }
+            return;
+        }
+        if (canceller.isReplayed()) {
+            Metrics.increment("idempotency.cancel.replayed");
+        } else {
+            journal(EventJournal.APPOINTMENT_CANCELLED, appt);
+        }
+        ConnectionManager.recordWrite();
+        System.out.println("Appointment ID: " + appt.getAppointmentID() + ", Caregiver username: " + appt.getCaregiver()
+                           + ", Patient username: " + appt.getPatient());
+        drainWaitlist(appt.getTime(), null);
+    }
+
+    private static void addDoses(String[] tokens) {
+        // add_doses <vaccine> <number>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        String vaccineName = tokens[1];
+        int doses = Integer.parseInt(tokens[2]);
+        // stored with the doses, so an attempt whose reply was lost is neither added again nor queued twice
+        PendingWrite write = PendingWrite.doses(vaccineName, doses);
+        try {
+            RetryPolicy.run("add_doses", true, () -> {
+                Vaccine vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+                // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the
+                //          Vaccines table
+                if (vaccine == null) {
+                    vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
+                    vaccine.saveToDB(write.getWriteID());
+                } else {
+                    // if the vaccine is not null, meaning that the vaccine already exists in our table
+                    vaccine.increaseAvailableDoses(doses, write.getWriteID());
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            // while the database is unreachable the doses are queued locally and added once it is back
+            PendingWrite.Outcome outcome = PendingWrite.Outcome.FAILED;
+            if (doses > 0) {
+                try {
+                    outcome = write.settle(e);
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+            }
+            if (outcome == PendingWrite.Outcome.QUEUED) {
+                System.out.println("Database unreachable, doses update pending");
+                return;
+            }
+            if (outcome == PendingWrite.Outcome.FAILED) {
+                System.out.println("Error occurred when adding doses");
+                e.printStackTrace();
+                return;
+            }
+            // the doses were added before the connection broke
+        }
+        ConnectionManager.recordWrite();
+        EventJournal.record(EventJournal.DOSES_CHANGED, vaccineName, doses);
+        System.out.println("Doses updated!");
+        drainWaitlist(null, vaccineName);
+    }
+
+    private static void stripeVaccine(String[] tokens) {
+        // stripe_vaccine <vaccine> <stripes>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        String vaccineName = tokens[1];
+        int stripes;
+        try {
+            stripes = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            System.out.println("Please try again!");
+            return;
+        }
+        // check 3: 0 puts the doses back into a single counter
+        if (stripes < 0 || stripes > MAX_VACCINE_STRIPES) {
+            System.out.println("Stripes must be between 0 and " + MAX_VACCINE_STRIPES + "!");
+            return;
+        }
+        try {
+            // check 4: the vaccine must exist
+            if (new Vaccine.VaccineGetter(vaccineName).get() == null) {
+                System.out.println("Unknown vaccine!");
+                return;
+            }
+            RetryPolicy.run("stripe_vaccine", true, () -> {
+                Vaccine.setStripes(vaccineName, stripes);
+                return null;
+            });
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        ConnectionManager.recordWrite();
+        System.out.println(stripes == 0 ? "Doses of " + vaccineName + " kept in one counter"
+                                        : "Doses of " + vaccineName + " split over " + stripes + " stripes");
+    }
+
+    private static void rebuildDailyCapacity(String[] tokens) {
+        // rebuild_daily_capacity
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 1
+        if (tokens.length != 1) {
+            System.out.println("Please try again!");
+            return;
+        }
+        int dates;
+        try {
+            dates = RetryPolicy.run("rebuild_daily_capacity", true, DailyCapacity::rebuild);
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        ConnectionManager.recordWrite();
+        System.out.println("Daily capacity rebuilt for " + dates + " date(s)");
+    }
+
+    private static void checkDailyCapacity(String[] tokens) {
+        // check_daily_capacity
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 1
+        if (tokens.length != 1) {
+            System.out.println("Please try again!");
+            return;
+        }
+        List<DailyCapacity> mismatches;
+        try {
+            mismatches = RetryPolicy.run("check_daily_capacity", true, DailyCapacity::check);
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        if (mismatches.isEmpty()) {
+            System.out.println("Daily capacity is consistent");
+            return;
+        }
+        // date, then summary vs. actual free caregivers and booked appointments
+        for (DailyCapacity day : mismatches) {
+            System.out.println(day.getTime() + " free " + day.getFreeCaregivers() + "/" +
+                               day.getActualFreeCaregivers() + " booked " + day.getBookedAppointments() + "/" +
+                               day.getActualBookedAppointments());
+        }
+        System.out.println(mismatches.size() + " date(s) out of date, run rebuild_daily_capacity");
+    }
+
+    private static void migrate(String[] tokens) {
+        // migrate [optional_migration]
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 1 or 2 (with the operation name)
+        if (tokens.length != 1 && tokens.length != 2) {
+            System.out.println("Please try again!");
+            return;
+        }
+        // check 3: an optional migration must be one the migrator knows
+        if (tokens.length == 2 && !Migrator.isOptional(tokens[1])) {
+            System.out.println("Unknown optional migration!");
+            return;
+        }
+        List<String> applied;
+        try {
+            applied = tokens.length == 2 ? Migrator.migrate(tokens[1]) : Migrator.migrate();
+        } catch (SQLException | IOException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        for (String migration : applied) {
+            System.out.println("Applied " + migration);
+        }
+        System.out.println(applied.isEmpty() ? "Schema is up to date" : "Schema migrated");
+    }
+
+    private static void addDosesManifest(String[] tokens) {
+        // add_doses_manifest <file>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            System.out.println("Please try again!");
+            return;
+        }
+        // Read "<vaccine> <doses>" lines, adding up vaccines that appear more than once
+        Map<String, Integer> shipment = new TreeMap<>();
+        try (BufferedReader manifest = Files.newBufferedReader(Paths.get(tokens[1]))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = manifest.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[\\s,]+");
+                int doses;
+                try {
+                    doses = fields.length == 2 ? Integer.parseInt(fields[1]) : -1;
+                } catch (NumberFormatException e) {
+                    doses = -1;
+                }
+                if (doses <= 0) {
+                    System.out.println("Invalid manifest line " + lineNumber + ": " + line);
+                    return;
+                }
+                shipment.merge(fields[0], doses, Integer::sum);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read manifest " + tokens[1]);
+            return;
+        }
+        if (shipment.isEmpty() || shipment.size() > MAX_MANIFEST_VACCINES) {
+            System.out.println("A manifest must list between 1 and " + MAX_MANIFEST_VACCINES + " vaccines!");
+            return;
+        }
+        // Apply the whole shipment with one MERGE in one transaction
+        List<Vaccine> inventory;
+        try {
+            inventory = RetryPolicy.run("add_doses_manifest", () -> Vaccine.addDoses(shipment));
+        } catch (SQLException e) {
+            System.out.println(failureMessage(e, "Error occurred when adding doses"));
+            e.printStackTrace();
+            return;
+        }
+        ConnectionManager.recordWrite();
+        for (Map.Entry<String, Integer> line : shipment.entrySet()) {
+            EventJournal.record(EventJournal.DOSES_CHANGED, line.getKey(), line.getValue());
+        }
+        System.out.println("Doses updated!");
+        for (Vaccine vaccine : inventory) {
+            System.out.println(vaccine.getVaccineName() + " " + vaccine.getAvailableDoses());
+        }
+        for (String vaccineName : shipment.keySet()) {
+            drainWaitlist(null, vaccineName);
+        }
+    }
+
+    private static void showAppointments(String[] tokens) {
+        // TODO: Part 2
+        // show_appointments
+        // check 1: check if user is logged in as either a patient or caregiver
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 1 since extra no info necessary
+        if (tokens.length != 1) {
+            System.out.println("Please try again!");
+            return;
+        }
+        // Initiate connection to the read-only data source
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createReadConnection();
+            // Setup up constants to work with both caregivers and patients
+            String columnInput = currentCaregiver != null ? "Caregiver" : "Patient";
+            String name = currentCaregiver != null ? currentCaregiver.getUsername() : currentPatient.getUsername();
+            String columnOutput = currentCaregiver != null ? "Patient" : "Caregiver";
+            // Get data
+            String getAppts = "SELECT * FROM Appointments WHERE " + columnInput + " = ? ORDER BY Appointment_id ASC";
+            PreparedStatement apptStatement = con.prepareStatement(getAppts);
             apptStatement.setString(1, name);
             ResultSet appts = apptStatement.executeQuery();
             // Print appointments
@@ -540,7 +1549,50 @@ public class Scheduler {
                 String vaccine = appts.getString("Vaccine");
                 String date = appts.getDate("Time").toString();
                 String username = appts.getString(columnOutput);
-                System.out.println(apptID + " " + vaccine + " " + date + " " + username);
+                int slotMinute = appts.getInt("Slot_minute");
+                String slot = appts.wasNull() ? "" : " " + SlotAllocator.formatMinute(slotMinute);
+                System.out.println(apptID + " " + vaccine + " " + date + slot + " " + username);
+            }
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void showHistory(String[] tokens) {
+        // show_history
+        // check 1: check if user is logged in as either a patient or caregiver
+        if (currentCaregiver == null && currentPatient == null) {
+            System.out.println("Please login first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 1 since extra no info necessary
+        if (tokens.length != 1) {
+            System.out.println("Please try again!");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createReadConnection();
+            String columnInput = currentCaregiver != null ? "Caregiver" : "Patient";
+            String name = currentCaregiver != null ? currentCaregiver.getUsername() : currentPatient.getUsername();
+            String columnOutput = currentCaregiver != null ? "Patient" : "Caregiver";
+            // archived appointments only; show_appointments lists the rest
+            String getHistory = "SELECT * FROM AppointmentsArchive WHERE " + columnInput + " = ? " +
+                                "ORDER BY Time ASC, Appointment_id ASC";
+            PreparedStatement historyStatement = con.prepareStatement(getHistory);
+            historyStatement.setString(1, name);
+            ResultSet appts = historyStatement.executeQuery();
+            while (appts.next()) {
+                int apptID = appts.getInt("Appointment_id");
+                String vaccine = appts.getString("Vaccine");
+                String date = appts.getDate("Time").toString();
+                String username = appts.getString(columnOutput);
+                int slotMinute = appts.getInt("Slot_minute");
+                String slot = appts.wasNull() ? "" : " " + SlotAllocator.formatMinute(slotMinute);
+                System.out.println(apptID + " " + vaccine + " " + date + slot + " " + username);
             }
         } catch (SQLException e) {
             System.out.println("Please try again!");
@@ -550,6 +1602,178 @@ public class Scheduler {
         }
     }
 
+    private static void readYourWrites(String[] tokens) {
+        // read_your_writes <on|off>
+        // check 1: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2 || !(tokens[1].equals("on") || tokens[1].equals("off"))) {
+            System.out.println("Please try again!");
+            return;
+        }
+        // when on, reads go to the primary for a short while after this session's own writes
+        ConnectionManager.setReadYourWrites(tokens[1].equals("on"));
+        System.out.println("Read-your-writes " + tokens[1]);
+    }
+
+    private static void exportAppointments(String[] tokens) {
+        // export_appointments <file> [csv|columnar] [with_vaccines]
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 2 to 4 (with the operation name)
+        if (tokens.length < 2 || tokens.length > 4) {
+            System.out.println("Please try again!");
+            return;
+        }
+        AppointmentExport.Format format = AppointmentExport.Format.CSV;
+        if (tokens.length >= 3) {
+            if (tokens[2].equals("columnar")) {
+                format = AppointmentExport.Format.COLUMNAR;
+            } else if (!tokens[2].equals("csv")) {
+                System.out.println("Unknown format!");
+                return;
+            }
+        }
+        if (tokens.length == 4 && !tokens[3].equals("with_vaccines")) {
+            System.out.println("Please try again!");
+            return;
+        }
+        AppointmentExport export = new AppointmentExport(Paths.get(tokens[1]), format, tokens.length == 4);
+        long rows;
+        try {
+            rows = export.export();
+        } catch (IOException e) {
+            System.out.println("Could not write " + tokens[1]);
+            return;
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("Exported " + rows + " appointment(s) to " + tokens[1]);
+    }
+
+    private static void report(String[] tokens) {
+        // report <from_date> <to_date>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[1]);
+            to = Date.valueOf(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        if (to.before(from)) {
+            System.out.println("Please enter a valid date range!");
+            return;
+        }
+        AnalyticsReport report = new AnalyticsReport(from, to);
+        long start = System.nanoTime();
+        try {
+            report.run();
+        } catch (SQLException | IOException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("Utilization (date caregiver booked/capacity):");
+        for (AnalyticsReport.CaregiverDay day : report.getUtilization()) {
+            System.out.printf("%s %s %d/%d %.0f%%%n", day.getDate(), day.getCaregiver(), day.getBooked(),
+                              day.getCapacity(), day.getUtilization() * 100);
+        }
+        System.out.println("Doses used (week vaccine doses):");
+        for (AnalyticsReport.VaccineWeek week : report.getDosesUsed()) {
+            System.out.println(week.getWeekStart() + " " + week.getVaccine() + " " + week.getDoses());
+        }
+        System.out.println("Cancellations (vaccine cancelled/reserved, from the event journal):");
+        for (AnalyticsReport.CancelRate rate : report.getCancelRates()) {
+            System.out.printf("%s %d/%d %.1f%%%n", rate.getVaccine(), rate.getCancelled(), rate.getReserved(),
+                              rate.getRate() * 100);
+        }
+        // appointments aren't checked in, so there is nothing to count no-shows from
+        System.out.println("No-shows: not recorded");
+        System.out.printf("Report built in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void reportMonthly(String[] tokens) {
+        // report_monthly <from_date> <to_date>
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            System.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            System.out.println("Please try again!");
+            return;
+        }
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[1]);
+            to = Date.valueOf(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
+        if (to.before(from)) {
+            System.out.println("Please enter a valid date range!");
+            return;
+        }
+        MonthlyRollup rollup = new MonthlyRollup(from, to);
+        long start = System.nanoTime();
+        try {
+            rollup.run();
+        } catch (SQLException e) {
+            System.out.println("Please try again!");
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("By vaccine (month vaccine appointments patients):");
+        for (MonthlyRollup.MonthCount count : rollup.getByVaccine()) {
+            System.out.println(count.getMonth() + " " + count.getName() + " " + count.getAppointments() + " " +
+                               count.getPatients());
+        }
+        System.out.println("By caregiver (month caregiver appointments patients):");
+        for (MonthlyRollup.MonthCount count : rollup.getByCaregiver()) {
+            System.out.println(count.getMonth() + " " + count.getName() + " " + count.getAppointments() + " " +
+                               count.getPatients());
+        }
+        System.out.printf("Rollup built in %d ms from the %s%n", (System.nanoTime() - start) / 1_000_000,
+                          rollup.usedColumnstore() ? "columnstore index" : "rowstore");
+    }
+
+    private static void metrics(String[] tokens) {
+        // metrics
+        // check 1: the length for tokens need to be exactly 1 since extra no info necessary
+        if (tokens.length != 1) {
+            System.out.println("Please try again!");
+            return;
+        }
+        for (Map.Entry<String, Long> counter : Metrics.snapshot().entrySet()) {
+            System.out.println(counter.getKey() + " " + counter.getValue());
+        }
+        System.out.printf("%s.hit_ratio %.3f%n", ScheduleCache.caregivers.getName(), ScheduleCache.caregivers.hitRatio());
+        System.out.printf("%s.hit_ratio %.3f%n", ScheduleCache.vaccines.getName(), ScheduleCache.vaccines.hitRatio());
+        try {
+            System.out.println("pending_writes.waiting " + PendingWrite.count());
+        } catch (IOException e) {
+            System.out.println("pending_writes.waiting unknown");
+        }
+    }
+
     private static void logout(String[] tokens) {
         // TODO: Part 2
         // logout
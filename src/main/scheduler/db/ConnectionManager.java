@@ -1,5 +1,7 @@
 package scheduler.db;
 
+import scheduler.util.Metrics;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -7,13 +9,31 @@ import java.sql.SQLException;
 public class ConnectionManager {
 
     private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
+    // ConnectionUrl / ReadConnectionUrl override the Azure urls, e.g. to point at two local embedded databases
+    private final String connectionUrl = System.getenv("ConnectionUrl") != null ? System.getenv("ConnectionUrl") :
+            "jdbc:sqlserver://" + System.getenv("Server") + ".database.windows.net:1433;database=" + System.getenv("DBName");
+    private final String readConnectionUrl = readConnectionUrl();
     private final String userName = System.getenv("UserID");
     private final String userPass = System.getenv("Password");
 
+    // how long reads stay on the primary after this session's own write when read-your-writes is on
+    private static final long READ_YOUR_WRITES_WINDOW_MILLIS = 5000;
+    // on unless $ReadYourWrites is false, so a patient's search right after their own reserve or cancel shows it
+    private static volatile boolean readYourWrites = !"false".equalsIgnoreCase(System.getenv("ReadYourWrites"));
+    private static volatile long lastWriteMillis = 0;
+
     private Connection con = null;
 
+    // The connection to the primary could not be established, so none of the caller's work reached the database.
+    // Keeps the SQLState and error code of the driver's exception, which is its cause.
+    public static class NotConnectedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        NotConnectedException(SQLException cause) {
+            super(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+        }
+    }
+
     public ConnectionManager() {
         try {
             Class.forName(driverName);
@@ -22,20 +42,110 @@ public class ConnectionManager {
         }
     }
 
-    public Connection createConnection() {
+    // Throws NotConnectedException instead of returning null when the database can't be reached, so callers fail (or
+    // go offline) cleanly. Under a command's deadline, the connection runs its statements with the time left; see
+    // Deadline.
+    public Connection createConnection() throws SQLException {
+        Deadline deadline = Deadline.current();
+        String properties = deadline == null ? "" : deadline.connectionProperties();
+        try {
+            con = DriverManager.getConnection(connectionUrl + properties, userName, userPass);
+        } catch (SQLException e) {
+            throw new NotConnectedException(e);
+        }
+        if (deadline != null) {
+            con = deadline.wrap(con);
+        }
+        return con;
+    }
+
+    // Connection for interactive read-only commands. Goes to the read-only data source when one is configured, unless
+    // read-your-writes is on (the default) and the session wrote recently; falls back to the primary if the read
+    // source is unreachable.
+    public Connection createReadConnection() throws SQLException {
+        return openRead("", Deadline.current(), true);
+    }
+
+    // Connection for reports, which always go to the read-only data source when one is configured: they summarize
+    // past appointments, so a write a moment ago doesn't matter to them, and they are the reads worth offloading
+    public Connection createReportConnection() throws SQLException {
+        return openRead("", Deadline.current(), false);
+    }
+
+    // Report connection under the given deadline, for threads working on behalf of another thread's command
+    Connection createReportConnection(Deadline deadline) throws SQLException {
+        return openRead("", deadline, false);
+    }
+
+    // Report connection for results too large to hold in memory: with adaptive response buffering the driver reads
+    // rows from the server as the result set advances instead of buffering the whole result first
+    public Connection createStreamingConnection() throws SQLException {
+        return openRead(";responseBuffering=adaptive", Deadline.current(), false);
+    }
+
+    private Connection openRead(String properties, Deadline deadline, boolean ownWrites) throws SQLException {
+        if (deadline != null) {
+            con = deadline.wrap(openRead(properties + deadline.connectionProperties(), ownWrites));
+            return con;
+        }
+        return openRead(properties, ownWrites);
+    }
+
+    // Counts where each read went under read_connections.*, which the metrics command shows
+    private Connection openRead(String properties, boolean ownWrites) throws SQLException {
+        if (readConnectionUrl == null || (ownWrites && readYourWrites &&
+                System.currentTimeMillis() - lastWriteMillis < READ_YOUR_WRITES_WINDOW_MILLIS)) {
+            con = DriverManager.getConnection(connectionUrl + properties, userName, userPass);
+            Metrics.increment("read_connections.primary");
+            return con;
+        }
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            con = DriverManager.getConnection(readConnectionUrl + properties, userName, userPass);
+            Metrics.increment("read_connections.replica");
         } catch (SQLException e) {
             e.printStackTrace();
+            con = DriverManager.getConnection(connectionUrl + properties, userName, userPass);
+            Metrics.increment("read_connections.fallback");
         }
         return con;
     }
 
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    // Called after a command has written to the primary
+    public static void recordWrite() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    public static void setReadYourWrites(boolean enabled) {
+        readYourWrites = enabled;
+    }
+
+    public static boolean isReadYourWrites() {
+        return readYourWrites;
+    }
+
+    // ReadConnectionUrl wins, then a separate ReadServer, then ReadOnlyIntent=true to let the primary's listener
+    // route to a readable secondary. Returns null when reads should stay on the primary.
+    private static String readConnectionUrl() {
+        if (System.getenv("ReadConnectionUrl") != null) {
+            return System.getenv("ReadConnectionUrl");
+        }
+        String server = System.getenv("ReadServer") != null ? System.getenv("ReadServer") :
+                "true".equalsIgnoreCase(System.getenv("ReadOnlyIntent")) ? System.getenv("Server") : null;
+        if (server == null) {
+            return null;
+        }
+        return "jdbc:sqlserver://" + server + ".database.windows.net:1433;database=" + System.getenv("DBName") +
+                ";applicationIntent=ReadOnly";
+    }
 }
@@ -0,0 +1,69 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A fixed number of read connections shared by the threads of one job. Connections are opened on first demand; once
+// all are open, borrow() waits for one to be released. close() closes every connection the pool opened. The pool
+// works under the deadline of the command that created it, whichever thread borrows: its connections run their
+// statements with the time left, and borrow() waits no longer than that.
+public class ConnectionPool implements AutoCloseable {
+    private final int size;
+    private final BlockingQueue<Connection> idle;
+    private final List<ConnectionManager> opened = new ArrayList<>();
+    private final Deadline deadline;
+
+    public ConnectionPool(int size) {
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.deadline = Deadline.current();
+    }
+
+    public Connection borrow() throws SQLException {
+        Connection con = idle.poll();
+        if (con != null) {
+            return con;
+        }
+        synchronized (opened) {
+            if (opened.size() < size) {
+                ConnectionManager cm = new ConnectionManager();
+                con = cm.createReportConnection(deadline);
+                opened.add(cm);
+                return con;
+            }
+        }
+        try {
+            if (deadline == null) {
+                return idle.take();
+            }
+            con = idle.poll(deadline.remaining(), TimeUnit.MILLISECONDS);
+            if (con == null) {
+                throw deadline.timeout("Waiting for a pooled connection");
+            }
+            return con;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        }
+    }
+
+    public void release(Connection con) {
+        idle.offer(con);
+    }
+
+    @Override
+    public void close() {
+        synchronized (opened) {
+            for (ConnectionManager cm : opened) {
+                cm.closeConnection();
+            }
+            opened.clear();
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,188 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// The time by which the running command has to finish. Scheduler starts one per command on its thread. Connections
+// opened while it runs log in within the time left, every statement on them is executed with the time left as its
+// query timeout, and a watchdog cancels the statements still open when the deadline passes. Retries and pool waits
+// give up rather than outlast it. When the command ends, it is counted under command.<name>.timeouts if it ran out
+// of time, or command.<name>.failures if a statement failed otherwise.
+public class Deadline implements AutoCloseable {
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "deadline-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String command;
+    private final long expiresNanos;
+    private final Deadline previous;
+    // statements of this command's connections, which may be on other threads (e.g. a report's pool)
+    private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+    private final ScheduledFuture<?> cancelTask;
+    private volatile boolean timedOut = false;
+    private volatile boolean failed = false;
+
+    private Deadline(String command, long millis) {
+        this.command = command;
+        this.expiresNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        this.previous = current.get();
+        this.cancelTask = watchdog.schedule(this::cancelAll, millis, TimeUnit.MILLISECONDS);
+    }
+
+    // Start the deadline of a command on this thread; close() ends it
+    public static Deadline start(String command, long millis) {
+        Deadline deadline = new Deadline(command, millis);
+        current.set(deadline);
+        return deadline;
+    }
+
+    // The deadline of the command running on this thread, or null
+    public static Deadline current() {
+        return current.get();
+    }
+
+    // Time left to the deadline of the command on this thread; unlimited when there is none
+    public static long remainingMillis() {
+        Deadline deadline = current.get();
+        return deadline == null ? Long.MAX_VALUE : deadline.remaining();
+    }
+
+    public long remaining() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresNanos - System.nanoTime()));
+    }
+
+    public boolean passed() {
+        return System.nanoTime() - expiresNanos >= 0;
+    }
+
+    // Record that the command ran out of time and return the exception to throw
+    public SQLTimeoutException timeout(String what) {
+        timedOut = true;
+        return new SQLTimeoutException(what + " passed the deadline of " + command);
+    }
+
+    // A retry succeeded, so the statement failures before it didn't fail the command
+    void recovered() {
+        failed = false;
+    }
+
+    // Connection properties that bound the login by the time left
+    String connectionProperties() {
+        // loginTimeout is in whole seconds, and 0 means the driver's default
+        return ";loginTimeout=" + Math.max(1, (remaining() + 999) / 1000);
+    }
+
+    Connection wrap(Connection con) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                                                   new ConnectionHandler(con));
+    }
+
+    @Override
+    public void close() {
+        cancelTask.cancel(false);
+        statements.clear();
+        if (current.get() == this) {
+            current.set(previous);
+        }
+        if (timedOut) {
+            Metrics.increment("command." + command + ".timeouts");
+        } else if (failed) {
+            Metrics.increment("command." + command + ".failures");
+        }
+    }
+
+    private void cancelAll() {
+        timedOut = true;
+        for (Statement statement : statements) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // closed already, or the driver couldn't reach the server; the query timeout still applies
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Hands out statements that run under the deadline
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection con;
+
+        ConnectionHandler(Connection con) {
+            this.con = con;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = Deadline.invoke(con, method, args);
+            if (!(result instanceof Statement)) {
+                return result;
+            }
+            Statement statement = (Statement) result;
+            statements.add(statement);
+            Class<?> type = result instanceof CallableStatement ? CallableStatement.class :
+                            result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                                          new StatementHandler(statement));
+        }
+    }
+
+    // Sets the query timeout from the time left before every execution
+    private class StatementHandler implements InvocationHandler {
+        private final Statement statement;
+
+        StatementHandler(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("close")) {
+                statements.remove(statement);
+            }
+            if (!method.getName().startsWith("execute")) {
+                return Deadline.invoke(statement, method, args);
+            }
+            if (passed()) {
+                throw timeout("Statement");
+            }
+            // whole seconds, rounded up; 0 would mean no timeout
+            statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, (remaining() + 999) / 1000)));
+            try {
+                return Deadline.invoke(statement, method, args);
+            } catch (SQLException e) {
+                if (e instanceof SQLTimeoutException || passed()) {
+                    timedOut = true;
+                } else {
+                    failed = true;
+                }
+                throw e;
+            }
+        }
+    }
+}
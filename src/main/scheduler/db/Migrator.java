@@ -0,0 +1,133 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Brings a database created from an older create.sql up to date. Each script in resources/migrations runs once, in
+// the order of MIGRATIONS, in a single transaction together with its row in SchemaVersions; like create.sql, a script
+// is split into batches on lines holding only GO. A script may record itself, for when it is run by hand. Optional
+// migrations are only applied when asked for by name.
+public class Migrator {
+    private static final String[] MIGRATIONS = {
+            "001_partition_by_month",
+            "003_switch_out_to_archive_tables",
+            "004_idempotency_keys_by_operation",
+            "005_one_booking_kind_per_day",
+    };
+    private static final Set<String> OPTIONAL = Set.of(
+            "002_appointments_columnstore"
+    );
+
+    public static boolean isOptional(String migration) {
+        return OPTIONAL.contains(migration);
+    }
+
+    // Apply the pending migrations; returns the migrations applied
+    public static List<String> migrate() throws SQLException, IOException {
+        return migrate(MIGRATIONS);
+    }
+
+    // Apply the pending migrations, then the optional one if it hasn't been already
+    public static List<String> migrate(String optional) throws SQLException, IOException {
+        if (!isOptional(optional)) {
+            throw new IllegalArgumentException("Unknown optional migration " + optional);
+        }
+        String[] migrations = Arrays.copyOf(MIGRATIONS, MIGRATIONS.length + 1);
+        migrations[MIGRATIONS.length] = optional;
+        return migrate(migrations);
+    }
+
+    private static List<String> migrate(String[] migrations) throws SQLException, IOException {
+        List<String> applied = new ArrayList<>();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            con.prepareStatement("IF OBJECT_ID('SchemaVersions') IS NULL " +
+                                 "CREATE TABLE SchemaVersions (Version VARCHAR(64), Applied DATETIME2, " +
+                                                              "PRIMARY KEY (Version))").execute();
+            Set<String> done = new HashSet<>();
+            ResultSet versions = con.prepareStatement("SELECT Version FROM SchemaVersions").executeQuery();
+            while (versions.next()) {
+                done.add(versions.getString("Version"));
+            }
+            con.setAutoCommit(false);
+            for (String migration : migrations) {
+                if (done.contains(migration)) {
+                    continue;
+                }
+                try {
+                    for (String batch : batches(load(migration))) {
+                        con.prepareStatement(batch).execute();
+                    }
+                    PreparedStatement record = con.prepareStatement(
+                            "IF NOT EXISTS (SELECT 1 FROM SchemaVersions WHERE Version = ?) " +
+                            "INSERT INTO SchemaVersions (Version, Applied) VALUES (?, SYSUTCDATETIME())");
+                    record.setString(1, migration);
+                    record.setString(2, migration);
+                    record.executeUpdate();
+                    con.commit();
+                } catch (SQLException e) {
+                    try {
+                        con.rollback();
+                    } catch (SQLException r) {
+                        e.addSuppressed(r);
+                    }
+                    throw e;
+                }
+                applied.add(migration);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return applied;
+    }
+
+    // From the classpath, where src/main/resources is a resources root, or else from the source tree when running
+    // from the repository root without it
+    private static String load(String migration) throws IOException {
+        try (InputStream in = Migrator.class.getResourceAsStream("/migrations/" + migration + ".sql")) {
+            if (in != null) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        Path file = Paths.get("src", "main", "resources", "migrations", migration + ".sql");
+        if (!Files.exists(file)) {
+            throw new IOException("Missing migration " + migration);
+        }
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> batches(String script) {
+        List<String> batches = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        for (String line : script.split("\r?\n")) {
+            if (line.trim().equalsIgnoreCase("GO")) {
+                add(batches, batch);
+                batch.setLength(0);
+            } else {
+                batch.append(line).append('\n');
+            }
+        }
+        add(batches, batch);
+        return batches;
+    }
+
+    private static void add(List<String> batches, StringBuilder batch) {
+        if (!batch.toString().isBlank()) {
+            batches.add(batch.toString());
+        }
+    }
+}
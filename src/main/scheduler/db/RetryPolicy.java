@@ -0,0 +1,188 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+
+    // SQL Server / Azure SQL error codes worth retrying: deadlock victim, lock timeout, database unavailable,
+    // service busy, failover/reconfiguration and resource governance errors, and our own 50001 (doses counted by
+    // TakeDoses or reserve_group were taken concurrently, so a fresh count may still find enough or say there are none)
+    private static final Set<Integer> TRANSIENT_ERRORS = new HashSet<>(Arrays.asList(
+            1205, 1222, 4060, 4221, 10928, 10929, 40143, 40197, 40501, 40540, 40613, 49918, 49919, 49920, 50001));
+
+    // database unavailable, or not currently available (e.g. during an Azure failover)
+    private static final Set<Integer> UNREACHABLE_ERRORS = new HashSet<>(Arrays.asList(4060, 40613));
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BASE_DELAY_MILLIS = 50;
+    private static final long MAX_DELAY_MILLIS = 2000;
+
+    // Retry budget: every retry spends a token, every first-attempt success earns a fraction of one back,
+    // so retries stay a bounded share of traffic when the database is struggling
+    private static final double MAX_BUDGET = 10;
+    private static final double BUDGET_PER_SUCCESS = 0.1;
+    private static double budget = MAX_BUDGET;
+
+    public interface UnitOfWork<T> {
+        T run() throws SQLException;
+    }
+
+    // The connection broke after work that isn't safe to repeat was sent, so it may or may not have been applied
+    public static class OutcomeUnknownException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        OutcomeUnknownException(String name, SQLException cause) {
+            super("Lost the connection while running " + name + "; it may have been applied",
+                  cause.getSQLState(), cause.getErrorCode(), cause);
+        }
+    }
+
+    // Run work that is not safe to repeat once it may have committed: a connection that breaks after the work was
+    // sent fails it with OutcomeUnknownException instead of retrying it
+    public static <T> T run(String name, UnitOfWork<T> work) throws SQLException {
+        return run(name, false, work);
+    }
+
+    // Run work, retrying transient failures with exponential backoff and full jitter, within the command's deadline.
+    // The work must be a whole transaction so that re-running it after a failure is safe. It is idempotent when a
+    // repeat of work that already committed changes nothing (a claimed write ID or idempotency key, or work that
+    // recomputes its result from the current state); only then is a connection that broke mid-way retried.
+    public static <T> T run(String name, boolean idempotent, UnitOfWork<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = work.run();
+                if (attempt == 1) {
+                    deposit();
+                } else if (Deadline.current() != null) {
+                    Deadline.current().recovered();
+                }
+                return result;
+            } catch (SQLException e) {
+                if (!idempotent && brokeAfterConnecting(e)) {
+                    Metrics.increment("retry." + name + ".outcome_unknown");
+                    throw new OutcomeUnknownException(name, e);
+                }
+                // a statement that ran out the deadline looks transient, but there is no time left to retry it
+                if (!isTransient(e) || Deadline.remainingMillis() == 0) {
+                    throw e;
+                }
+                Metrics.increment("retry." + name + ".transient_failures");
+                if (attempt >= MAX_ATTEMPTS) {
+                    Metrics.increment("retry." + name + ".gave_up");
+                    throw e;
+                }
+                long delay = backoff(attempt);
+                if (delay >= Deadline.remainingMillis()) {
+                    Metrics.increment("retry." + name + ".deadline");
+                    throw e;
+                }
+                if (!withdraw()) {
+                    Metrics.increment("retry." + name + ".budget_exhausted");
+                    throw e;
+                }
+                Metrics.increment("retry." + name + ".retries");
+                sleep(delay);
+            }
+        }
+    }
+
+    public static boolean isTransient(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                SQLException sqlException = (SQLException) t;
+                if (TRANSIENT_ERRORS.contains(sqlException.getErrorCode())) {
+                    return true;
+                }
+                // SQLState class 08 is a connection exception
+                if (sqlException.getSQLState() != null && sqlException.getSQLState().startsWith("08")) {
+                    return true;
+                }
+                if (sqlException.getNextException() != null && sqlException.getNextException() != t
+                        && isTransient(sqlException.getNextException())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Whether the work failed before it had a connection, so none of it can have been applied. A connection that
+    // broke later (e.g. SQLState 08S01 after the statement was sent) doesn't count: the work may have committed.
+    public static boolean neverConnected(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConnectionManager.NotConnectedException) {
+                return true;
+            }
+            if (t instanceof SQLException && UNREACHABLE_ERRORS.contains(((SQLException) t).getErrorCode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A connection exception (SQLState class 08) on a connection that had been established
+    private static boolean brokeAfterConnecting(SQLException e) {
+        if (neverConnected(e)) {
+            return false;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException && ((SQLException) t).getSQLState() != null
+                    && ((SQLException) t).getSQLState().startsWith("08")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the database could not be reached at all, as opposed to rejecting or failing the work
+    public static boolean isUnreachable(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                SQLException sqlException = (SQLException) t;
+                if (UNREACHABLE_ERRORS.contains(sqlException.getErrorCode())) {
+                    return true;
+                }
+                if (sqlException.getSQLState() != null && sqlException.getSQLState().startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static synchronized void deposit() {
+        budget = Math.min(MAX_BUDGET, budget + BUDGET_PER_SUCCESS);
+    }
+
+    private static synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    private static void sleep(long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry", e);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionPool;
+import scheduler.util.EventJournal;
+import scheduler.util.LongLongMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Utilization per caregiver per day, doses used per vaccine per week and cancellation rates per vaccine over a date
+// range. The range is split into PARTITION_DAYS partitions that are loaded in parallel, each over its own pooled
+// connection, into maps keyed by (day or week, interned name) packed into a long, and the partial maps are merged
+// as the fork/join tasks complete. Cancellations are not kept in the database, so they come from the event journal.
+public class AnalyticsReport {
+    private static final int PARALLELISM = 4;
+    // days loaded by one task
+    private static final int PARTITION_DAYS = 7;
+
+    private final LocalDate from;
+    private final LocalDate to;
+    // usernames and vaccine names, interned to ints for the map keys
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger nextID = new AtomicInteger();
+
+    private final List<CaregiverDay> utilization = new ArrayList<>();
+    private final List<VaccineWeek> dosesUsed = new ArrayList<>();
+    private final List<CancelRate> cancelRates = new ArrayList<>();
+
+    public AnalyticsReport(Date from, Date to) {
+        this.from = from.toLocalDate();
+        this.to = to.toLocalDate();
+    }
+
+    public List<CaregiverDay> getUtilization() { return utilization; }
+
+    public List<VaccineWeek> getDosesUsed() { return dosesUsed; }
+
+    public List<CancelRate> getCancelRates() { return cancelRates; }
+
+    public void run() throws SQLException, IOException {
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try (ConnectionPool connections = new ConnectionPool(PARALLELISM)) {
+            ForkJoinTask<LongLongMap[]> cancels = pool.submit(this::readCancellations);
+            Totals totals = pool.invoke(new Partition(connections, from, to));
+            collect(totals, cancels.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while building the report", e);
+        } catch (PartitionFailure e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void collect(Totals totals, LongLongMap[] cancels) {
+        totals.capacity.forEach((key, capacity) -> utilization.add(new CaregiverDay(
+                LocalDate.ofEpochDay(day(key)), names.get(id(key)), totals.booked.get(key), capacity)));
+        utilization.sort(Comparator.comparing((CaregiverDay d) -> d.date).thenComparing(d -> d.caregiver));
+        totals.doses.forEach((key, doses) -> dosesUsed.add(
+                new VaccineWeek(LocalDate.ofEpochDay(day(key)), names.get(id(key)), doses)));
+        dosesUsed.sort(Comparator.comparing((VaccineWeek w) -> w.weekStart).thenComparing(w -> w.vaccine));
+        // reserved and cancelled counts are keyed by the vaccine's id alone; an appointment reserved before the
+        // journal was started can still have been cancelled
+        Map<String, CancelRate> rates = new TreeMap<>();
+        LongLongMap vaccines = new LongLongMap();
+        vaccines.addAll(cancels[0]);
+        vaccines.addAll(cancels[1]);
+        vaccines.forEach((vaccine, events) -> rates.put(names.get((int) vaccine),
+                new CancelRate(names.get((int) vaccine), cancels[0].get(vaccine), cancels[1].get(vaccine))));
+        cancelRates.addAll(rates.values());
+    }
+
+    // Counts of appointments reserved and cancelled per vaccine, for appointments in the range, from the journal
+    private LongLongMap[] readCancellations() {
+        LongLongMap reserved = new LongLongMap();
+        LongLongMap cancelled = new LongLongMap();
+        try {
+            EventJournal.read(fields -> {
+                // timestamp, type, id, time, caregiver, vaccine, patient
+                if (fields.length < 7) {
+                    return;
+                }
+                boolean isReserved = fields[1].equals(EventJournal.APPOINTMENT_RESERVED);
+                if (!isReserved && !fields[1].equals(EventJournal.APPOINTMENT_CANCELLED)) {
+                    return;
+                }
+                LocalDate time = LocalDate.parse(fields[3]);
+                if (time.isBefore(from) || time.isAfter(to)) {
+                    return;
+                }
+                (isReserved ? reserved : cancelled).add(intern(fields[5]), 1);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new LongLongMap[] {reserved, cancelled};
+    }
+
+    private int intern(String name) {
+        return ids.computeIfAbsent(name, n -> {
+            int id = nextID.getAndIncrement();
+            names.put(id, n);
+            return id;
+        });
+    }
+
+    private static long key(long epochDay, int id) {
+        return (epochDay << 32) | (id & 0xffffffffL);
+    }
+
+    private static long day(long key) {
+        return key >> 32;
+    }
+
+    private static int id(long key) {
+        return (int) key;
+    }
+
+    // Partial results of one partition, or of several merged
+    private static class Totals {
+        // (day, caregiver) -> appointments booked
+        private final LongLongMap booked = new LongLongMap();
+        // (day, caregiver) -> appointments they could have had: booked or open days, and working window slots
+        private final LongLongMap capacity = new LongLongMap();
+        // (first day of the week, vaccine) -> doses used
+        private final LongLongMap doses = new LongLongMap();
+
+        Totals merge(Totals other) {
+            booked.addAll(other.booked);
+            capacity.addAll(other.capacity);
+            doses.addAll(other.doses);
+            return this;
+        }
+    }
+
+    // SQLException out of a fork/join task, which can only throw unchecked exceptions
+    private static class PartitionFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PartitionFailure(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    private class Partition extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+
+        private final ConnectionPool connections;
+        private final LocalDate first;
+        private final LocalDate last;
+
+        Partition(ConnectionPool connections, LocalDate first, LocalDate last) {
+            this.connections = connections;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Totals compute() {
+            long days = ChronoUnit.DAYS.between(first, last) + 1;
+            if (days > PARTITION_DAYS) {
+                LocalDate middle = first.plusDays(days / 2 - 1);
+                Partition left = new Partition(connections, first, middle);
+                left.fork();
+                Totals right = new Partition(connections, middle.plusDays(1), last).compute();
+                return left.join().merge(right);
+            }
+            try {
+                return load();
+            } catch (SQLException e) {
+                throw new PartitionFailure(e);
+            }
+        }
+
+        private Totals load() throws SQLException {
+            Totals totals = new Totals();
+            Connection con = connections.borrow();
+            try {
+                String getBooked = "SELECT Time, Caregiver, Vaccine, COUNT(*) AS Booked, " +
+                                          "SUM(CASE WHEN Slot_minute IS NULL THEN 1 ELSE 0 END) AS Day_level " +
+                                     "FROM AppointmentHistory WHERE Time BETWEEN ? AND ? " +
+                                    "GROUP BY Time, Caregiver, Vaccine";
+                ResultSet booked = query(con, getBooked);
+                while (booked.next()) {
+                    long day = booked.getDate("Time").toLocalDate().toEpochDay();
+                    long caregiverDay = key(day, intern(booked.getString("Caregiver")));
+                    totals.booked.add(caregiverDay, booked.getInt("Booked"));
+                    // booked time slots are already counted in their caregiver's working windows
+                    totals.capacity.add(caregiverDay, booked.getInt("Day_level"));
+                    long weekStart = LocalDate.ofEpochDay(day).with(DayOfWeek.MONDAY).toEpochDay();
+                    totals.doses.add(key(weekStart, intern(booked.getString("Vaccine"))), booked.getInt("Booked"));
+                }
+                String getOpen = "SELECT Time, Username, COUNT(*) AS Open_days FROM Availabilities " +
+                                  "WHERE Time BETWEEN ? AND ? GROUP BY Time, Username";
+                ResultSet open = query(con, getOpen);
+                while (open.next()) {
+                    totals.capacity.add(key(open.getDate("Time").toLocalDate().toEpochDay(),
+                                            intern(open.getString("Username"))), open.getInt("Open_days"));
+                }
+                String getSlots = "SELECT Time, Username, " +
+                                         "SUM((End_minute - Start_minute) / " + SlotAllocator.SLOT_MINUTES + ") " +
+                                         "AS Slots " +
+                                    "FROM WorkingWindows WHERE Time BETWEEN ? AND ? GROUP BY Time, Username";
+                ResultSet slots = query(con, getSlots);
+                while (slots.next()) {
+                    totals.capacity.add(key(slots.getDate("Time").toLocalDate().toEpochDay(),
+                                            intern(slots.getString("Username"))), slots.getInt("Slots"));
+                }
+                return totals;
+            } finally {
+                connections.release(con);
+            }
+        }
+
+        private ResultSet query(Connection con, String sql) throws SQLException {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setDate(1, Date.valueOf(first));
+            statement.setDate(2, Date.valueOf(last));
+            return statement.executeQuery();
+        }
+    }
+
+    public static class CaregiverDay {
+        private final LocalDate date;
+        private final String caregiver;
+        private final long booked;
+        private final long capacity;
+
+        CaregiverDay(LocalDate date, String caregiver, long booked, long capacity) {
+            this.date = date;
+            this.caregiver = caregiver;
+            this.booked = booked;
+            this.capacity = capacity;
+        }
+
+        public LocalDate getDate() { return date; }
+
+        public String getCaregiver() { return caregiver; }
+
+        public long getBooked() { return booked; }
+
+        public long getCapacity() { return capacity; }
+
+        public double getUtilization() { return capacity == 0 ? 0 : (double) booked / capacity; }
+    }
+
+    public static class VaccineWeek {
+        private final LocalDate weekStart;
+        private final String vaccine;
+        private final long doses;
+
+        VaccineWeek(LocalDate weekStart, String vaccine, long doses) {
+            this.weekStart = weekStart;
+            this.vaccine = vaccine;
+            this.doses = doses;
+        }
+
+        public LocalDate getWeekStart() { return weekStart; }
+
+        public String getVaccine() { return vaccine; }
+
+        public long getDoses() { return doses; }
+    }
+
+    public static class CancelRate {
+        private final String vaccine;
+        private final long reserved;
+        private final long cancelled;
+
+        CancelRate(String vaccine, long reserved, long cancelled) {
+            this.vaccine = vaccine;
+            this.reserved = reserved;
+            this.cancelled = cancelled;
+        }
+
+        public String getVaccine() { return vaccine; }
+
+        public long getReserved() { return reserved; }
+
+        public long getCancelled() { return cancelled; }
+
+        public double getRate() { return reserved == 0 ? 0 : (double) cancelled / reserved; }
+    }
+}
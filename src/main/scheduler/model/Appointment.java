@@ -2,6 +2,9 @@ package scheduler.model;
 
 import scheduler.db.ConnectionManager;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class Appointment {
     private final Date time;
@@ -9,6 +12,7 @@ public class Appointment {
     private final String vaccine;
     private final String patient;
     private final int appointmentID;
+    private final Integer slotMinute;
 
     public Date getTime() {  return time; }
 
@@ -20,12 +24,16 @@ public class Appointment {
 
     public int getAppointmentID() { return appointmentID; }
 
+    // Start of the time slot in minutes from midnight, or null for a day-level appointment
+    public Integer getSlotMinute() { return slotMinute; }
+
     private Appointment(AppointmentGetter getter) {
         this.time = getter.time;
         this.caregiver = getter.caregiver;
         this.vaccine = getter.vaccine;
         this.patient = getter.patient;
         this.appointmentID = getter.appointmentID;
+        this.slotMinute = getter.slotMinute;
     }
 
     private Appointment(AppointmentBuilder builder) {
@@ -34,6 +42,27 @@ public class Appointment {
         this.vaccine = builder.vaccine;
         this.patient = builder.patient;
         this.appointmentID = builder.appointmentID;
+        this.slotMinute = null;
+    }
+
+    // Used when appointments are created in bulk (e.g. draining the waitlist)
+    Appointment(Date time, String caregiver, String vaccine, String patient, int appointmentID) {
+        this(time, caregiver, vaccine, patient, appointmentID, null);
+    }
+
+    Appointment(Date time, String caregiver, String vaccine, String patient, int appointmentID, Integer slotMinute) {
+        this.time = time;
+        this.caregiver = caregiver;
+        this.vaccine = vaccine;
+        this.patient = patient;
+        this.appointmentID = appointmentID;
+        this.slotMinute = slotMinute;
+    }
+
+    // Reads a nullable Slot_minute column
+    static Integer getSlotMinute(ResultSet resultSet) throws SQLException {
+        int slotMinute = resultSet.getInt("Slot_minute");
+        return resultSet.wasNull() ? null : slotMinute;
     }
 
     public static class AppointmentGetter {
@@ -41,6 +70,7 @@ public class Appointment {
         private String caregiver;
         private String vaccine;
         private String patient;
+        private Integer slotMinute;
         private final int appointmentID;
 
         public AppointmentGetter(int appointmentID) {
@@ -62,16 +92,581 @@ public class Appointment {
                     this.caregiver = appts.getString("Caregiver");
                     this.vaccine = appts.getString("Vaccine");
                     this.patient = appts.getString("Patient");
+                    this.slotMinute = getSlotMinute(appts);
                     return new Appointment(this);
                 } else {
                     return null;
                 }
             } catch (SQLException e) {
-                throw new SQLException();
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class AppointmentCanceller {
+        private final int appointmentID;
+        private final String username;
+        private final boolean isCaregiver;
+        private final String requestID;
+        private boolean exists;
+        private boolean replayed;
+        private String reusedFor;
+
+        public AppointmentCanceller(int appointmentID, String username, boolean isCaregiver) {
+            this(appointmentID, username, isCaregiver, null);
+        }
+
+        // requestID is an optional client request ID; a retried request returns the originally cancelled appointment
+        public AppointmentCanceller(int appointmentID, String username, boolean isCaregiver, String requestID) {
+            this.appointmentID = appointmentID;
+            this.username = username;
+            this.isCaregiver = isCaregiver;
+            this.requestID = requestID;
+        }
+
+        // Whether the appointment still exists after cancel() returned null, i.e. it belongs to someone else
+        public boolean exists() { return exists; }
+
+        // Whether the last cancel() returned the outcome of an earlier request with the same request ID
+        public boolean isReplayed() { return replayed; }
+
+        // The operation the request ID was already used for, when the last cancel() returned null because of it
+        public String reusedFor() { return reusedFor; }
+
+        // Cancel the appointment if it belongs to username. The delete, the restored availability and the
+        // restored dose are applied in one transaction and sent to the server as a single batch.
+        public Appointment cancel() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            String owner = isCaregiver ? "Caregiver" : "Patient";
+            String cancelAppointment =
+                    "SET NOCOUNT ON; " +
+                    "SET XACT_ABORT ON; " +
+                    "DECLARE @id INT = ?, @username VARCHAR(255) = ?, @requestID VARCHAR(64) = ?, @replayed BIT = 0, " +
+                            "@vaccine VARCHAR(255), @reusedFor VARCHAR(16); " +
+                    "DECLARE @cancelled TABLE (Appointment_id INT, Time DATE, Caregiver VARCHAR(255), " +
+                                              "Vaccine VARCHAR(255), Patient VARCHAR(255), Slot_minute INT); " +
+                    "BEGIN TRANSACTION; " +
+                    // a request ID seen before returns its stored outcome instead of running again, and one still
+                    // live for a reservation cancels nothing
+                    "IF @requestID IS NOT NULL BEGIN " +
+                        "SELECT @reusedFor = Operation " +
+                          "FROM IdempotencyKeys WITH (UPDLOCK, HOLDLOCK) " +
+                         "WHERE Username = @username AND Request_id = @requestID AND Operation <> 'cancel' " +
+                           "AND Expires > SYSUTCDATETIME(); " +
+                        "INSERT INTO @cancelled (Appointment_id, Time, Caregiver, Vaccine, Patient) " +
+                        "SELECT Appointment_id, Time, Caregiver, Vaccine, Patient " +
+                          "FROM IdempotencyKeys WITH (UPDLOCK, HOLDLOCK) " +
+                         "WHERE Username = @username AND Request_id = @requestID AND Operation = 'cancel' " +
+                           "AND Expires > SYSUTCDATETIME(); " +
+                        "SET @replayed = @@ROWCOUNT; " +
+                    "END " +
+                    "IF @replayed = 0 AND @reusedFor IS NULL BEGIN " +
+                        "DELETE FROM Appointments " +
+                        "OUTPUT deleted.Appointment_id, deleted.Time, deleted.Caregiver, deleted.Vaccine, " +
+                               "deleted.Patient, deleted.Slot_minute INTO @cancelled " +
+                        "WHERE Appointment_id = @id AND " + owner + " = @username; " +
+                        // a cancelled time slot frees itself; a day-level appointment gives the day back
+                        "INSERT INTO Availabilities (Time, Username) " +
+                        "SELECT Time, Caregiver FROM @cancelled WHERE Slot_minute IS NULL; " +
+                        "SELECT @vaccine = Vaccine FROM @cancelled; " +
+                        "IF @vaccine IS NOT NULL EXEC PutDoses @vaccine, 1; " +
+                        "IF @requestID IS NOT NULL BEGIN " +
+                            // an expired key that Archiver hasn't deleted yet gives way to this request
+                            "DELETE FROM IdempotencyKeys " +
+                             "WHERE Username = @username AND Request_id = @requestID AND Operation = 'cancel' " +
+                               "AND Expires <= SYSUTCDATETIME(); " +
+                            "INSERT INTO IdempotencyKeys (Username, Request_id, Operation, Appointment_id, Time, " +
+                                                         "Caregiver, Vaccine, Patient, Expires) " +
+                            "SELECT @username, @requestID, 'cancel', Appointment_id, Time, Caregiver, Vaccine, " +
+                                   "Patient, DATEADD(HOUR, " + IdempotencyKey.TTL_HOURS + ", SYSUTCDATETIME()) " +
+                              "FROM @cancelled; " +
+                        "END " +
+                    "END " +
+                    "COMMIT TRANSACTION; " +
+                    "SELECT Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute, @replayed AS Replayed " +
+                      "FROM @cancelled; " +
+                    "SELECT COUNT(*) AS Found, @reusedFor AS Reused_for FROM Appointments WHERE Appointment_id = @id;";
+            try {
+                PreparedStatement cancelStatement = con.prepareStatement(cancelAppointment);
+                cancelStatement.setInt(1, appointmentID);
+                cancelStatement.setString(2, username);
+                cancelStatement.setString(3, requestID);
+                boolean isResultSet = cancelStatement.execute();
+                // skip any update counts before the first result set
+                while (!isResultSet && cancelStatement.getUpdateCount() != -1) {
+                    isResultSet = cancelStatement.getMoreResults();
+                }
+                Appointment cancelled = null;
+                ResultSet appts = cancelStatement.getResultSet();
+                this.replayed = false;
+                if (appts.next()) {
+                    this.replayed = appts.getBoolean("Replayed");
+                    cancelled = new Appointment(appts.getDate("Time"), appts.getString("Caregiver"),
+                                                appts.getString("Vaccine"), appts.getString("Patient"),
+                                                appts.getInt("Appointment_id"), getSlotMinute(appts));
+                }
+                cancelStatement.getMoreResults();
+                ResultSet found = cancelStatement.getResultSet();
+                found.next();
+                this.exists = found.getInt("Found") > 0;
+                this.reusedFor = found.getString("Reused_for");
+                if (cancelled != null && !replayed) {
+                    ScheduleCache.invalidateDate(cancelled.getTime());
+                    ScheduleCache.invalidateDoses();
+                    CaregiverSelector.CaregiverLoad.recordCancellation(cancelled.getTime(), cancelled.getCaregiver());
+                }
+                return cancelled;
+            } catch (SQLException e) {
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class AppointmentReserver {
+        private final Date time;
+        private final String vaccine;
+        private final String patient;
+        private final String requestID;
+        private boolean caregiverAvailable;
+        private boolean dosesAvailable;
+        private boolean replayed;
+        private String reusedFor;
+
+        public AppointmentReserver(Date time, String vaccine, String patient) {
+            this(time, vaccine, patient, null);
+        }
+
+        // requestID is an optional client request ID; a retried request returns the original appointment
+        public AppointmentReserver(Date time, String vaccine, String patient, String requestID) {
+            this.time = time;
+            this.vaccine = vaccine;
+            this.patient = patient;
+            this.requestID = requestID;
+        }
+
+        public boolean caregiverAvailable() { return caregiverAvailable; }
+
+        // Only checked once a caregiver was found free
+        public boolean dosesAvailable() { return dosesAvailable; }
+
+        // Whether the last reserve() returned the outcome of an earlier request with the same request ID
+        public boolean isReplayed() { return replayed; }
+
+        // The operation the request ID was already used for, when the last reserve() returned null because of it
+        public String reusedFor() { return reusedFor; }
+
+        // Claim a free caregiver and a dose and create the appointment in one transaction.
+        // Returns null, claiming nothing, if no caregiver is free, no doses are left or the request ID is reused.
+        public Appointment reserve() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                con.setAutoCommit(false);
+                Appointment appt = reserve(con);
+                if (appt == null) {
+                    con.rollback();
+                    return null;
+                }
+                con.commit();
+                if (!replayed) {
+                    ScheduleCache.invalidateDate(time);
+                    ScheduleCache.invalidateDoses();
+                    CaregiverSelector.CaregiverLoad.recordBooking(time, appt.getCaregiver());
+                }
+                return appt;
+            } catch (SQLException e) {
+                try {
+                    con.rollback();
+                } catch (SQLException r) {
+                    e.addSuppressed(r);
+                }
+                throw e;
             } finally {
                 cm.closeConnection();
             }
         }
+
+        // Same as reserve(), inside a transaction owned by the caller, which must roll back when this returns null
+        Appointment reserve(Connection con) throws SQLException {
+            this.reusedFor = null;
+            if (requestID != null) {
+                Appointment previous;
+                try {
+                    previous = IdempotencyKey.find(con, patient, requestID, "reserve");
+                } catch (IdempotencyKey.ReusedException e) {
+                    this.reusedFor = e.getOperation();
+                    return null;
+                }
+                this.replayed = previous != null;
+                if (replayed) {
+                    this.caregiverAvailable = true;
+                    this.dosesAvailable = true;
+                    return previous;
+                }
+            }
+            // Times and caregivers, read without locks; only the caregiver we end up claiming gets locked
+            String selectUsernames = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username ASC";
+            PreparedStatement usernameStatement = con.prepareStatement(selectUsernames);
+            usernameStatement.setDate(1, time);
+            ResultSet usernameSet = usernameStatement.executeQuery();
+            List<String> freeCaregivers = new ArrayList<>();
+            while (usernameSet.next()) {
+                freeCaregivers.add(usernameSet.getString("Username"));
+            }
+            this.caregiverAvailable = !freeCaregivers.isEmpty();
+            if (!caregiverAvailable) {
+                return null;
+            }
+            // Remove dose from vaccine (a random stripe of a striped vaccine)
+            this.dosesAvailable = Vaccine.takeDoses(con, vaccine, 1);
+            if (!dosesAvailable) {
+                return null;
+            }
+            // Remove availability of the caregiver picked by the current strategy; if a concurrent reservation
+            // claimed it first, pick again from the rest
+            String removeAvailability = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
+            PreparedStatement removeStatement = con.prepareStatement(removeAvailability);
+            CaregiverSelector selector = CaregiverSelector.current();
+            String caregiver = null;
+            while (caregiver == null && !freeCaregivers.isEmpty()) {
+                String candidate = selector.select(con, time, freeCaregivers);
+                removeStatement.setDate(1, time);
+                removeStatement.setString(2, candidate);
+                if (removeStatement.executeUpdate() == 1) {
+                    caregiver = candidate;
+                } else {
+                    freeCaregivers.remove(candidate);
+                }
+            }
+            if (caregiver == null) {
+                this.caregiverAvailable = false;
+                return null;
+            }
+            // Create appointment; OUTPUT needs INTO on a table with triggers (Appointments_DailyCapacity)
+            String insertAppointment = "SET NOCOUNT ON; " +
+                                       "DECLARE @created TABLE (Appointment_id INT); " +
+                                       "INSERT INTO Appointments (Time, Caregiver, Vaccine, Patient) " +
+                                       "OUTPUT inserted.Appointment_id INTO @created VALUES (?, ?, ?, ?); " +
+                                       "SELECT Appointment_id FROM @created;";
+            PreparedStatement appointmentStatement = con.prepareStatement(insertAppointment);
+            appointmentStatement.setDate(1, time);
+            appointmentStatement.setString(2, caregiver);
+            appointmentStatement.setString(3, vaccine);
+            appointmentStatement.setString(4, patient);
+            ResultSet ID = appointmentStatement.executeQuery();
+            ID.next();
+            Appointment appt = new Appointment(time, caregiver, vaccine, patient, ID.getInt("Appointment_id"));
+            if (requestID != null) {
+                IdempotencyKey.save(con, patient, requestID, "reserve", appt);
+            }
+            return appt;
+        }
+    }
+
+    public static class AppointmentSeriesReserver {
+        private final String vaccine;
+        private final String patient;
+        private final Date firstDate;
+        private final int intervalDays;
+        private final int doses;
+        private Date failedDate;
+        private boolean caregiverAvailable;
+        private boolean dosesAvailable;
+
+        public AppointmentSeriesReserver(String vaccine, String patient, Date firstDate, int intervalDays, int doses) {
+            this.vaccine = vaccine;
+            this.patient = patient;
+            this.firstDate = firstDate;
+            this.intervalDays = intervalDays;
+            this.doses = doses;
+        }
+
+        // Date of the dose that could not be booked after reserve() returned null
+        public Date getFailedDate() { return failedDate; }
+
+        public boolean caregiverAvailable() { return caregiverAvailable; }
+
+        public boolean dosesAvailable() { return dosesAvailable; }
+
+        // Book every dose of the series, intervalDays apart starting at firstDate, in one transaction.
+        // Returns the appointments in date order, or null, claiming nothing, if any dose cannot be booked.
+        public List<Appointment> reserve() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            List<Appointment> appts = new ArrayList<>();
+            try {
+                con.setAutoCommit(false);
+                this.failedDate = null;
+                for (int i = 0; i < doses; i++) {
+                    Date time = Date.valueOf(firstDate.toLocalDate().plusDays((long) i * intervalDays));
+                    AppointmentReserver reserver = new AppointmentReserver(time, vaccine, patient);
+                    Appointment appt = reserver.reserve(con);
+                    this.caregiverAvailable = reserver.caregiverAvailable();
+                    this.dosesAvailable = reserver.dosesAvailable();
+                    if (appt == null) {
+                        this.failedDate = time;
+                        con.rollback();
+                        return null;
+                    }
+                    appts.add(appt);
+                }
+                con.commit();
+                for (Appointment appt : appts) {
+                    ScheduleCache.invalidateDate(appt.getTime());
+                }
+                ScheduleCache.invalidateDoses();
+                return appts;
+            } catch (SQLException e) {
+                try {
+                    con.rollback();
+                } catch (SQLException r) {
+                    e.addSuppressed(r);
+                }
+                throw e;
+            } finally {
+                cm.closeConnection();
+                // loads read later in the transaction already counted its earlier doses, committed or not
+                for (Appointment appt : appts) {
+                    CaregiverSelector.CaregiverLoad.forget(appt.getTime());
+                }
+            }
+        }
+    }
+
+    public static class AppointmentGroupReserver {
+        private final Date time;
+        private final String vaccine;
+        private final List<String> patients;
+        private int placeable;
+        private int unknownPatients;
+
+        public AppointmentGroupReserver(Date time, String vaccine, List<String> patients) {
+            this.time = time;
+            this.vaccine = vaccine;
+            this.patients = patients;
+        }
+
+        // How many of the patients could have been placed, limited by free caregivers and doses
+        public int getPlaceable() { return placeable; }
+
+        // How many of the given usernames are not patients
+        public int getUnknownPatients() { return unknownPatients; }
+
+        // Claim one caregiver and one dose per patient and create every appointment with one insert, all in a single
+        // set-based batch. Returns the appointments, or null, claiming nothing, if not everyone can be placed.
+        public List<Appointment> reserve() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            StringBuilder patientRows = new StringBuilder();
+            for (int i = 0; i < patients.size(); i++) {
+                patientRows.append(i == 0 ? "" : ", ").append("(?, ").append(i + 1).append(")");
+            }
+            String reserveGroup =
+                    "SET NOCOUNT ON; " +
+                    "SET XACT_ABORT ON; " +
+                    "DECLARE @time DATE = ?, @vaccine VARCHAR(255) = ?; " +
+                    "DECLARE @patients TABLE (Patient VARCHAR(255) PRIMARY KEY, Rn INT); " +
+                    "DECLARE @free TABLE (Username VARCHAR(255), Rn INT); " +
+                    "DECLARE @created TABLE (Appointment_id INT, Caregiver VARCHAR(255), Patient VARCHAR(255)); " +
+                    "INSERT INTO @patients (Patient, Rn) VALUES " + patientRows + "; " +
+                    "DECLARE @needed INT = (SELECT COUNT(*) FROM @patients), @doses INT = 0, @placeable INT, " +
+                            "@unknown INT, @status INT; " +
+                    "BEGIN TRANSACTION; " +
+                    "SELECT @unknown = COUNT(*) FROM @patients WHERE Patient NOT IN (SELECT Username FROM Patients); " +
+                    "SELECT @doses = Doses FROM VaccineInventory WHERE Name = @vaccine; " +
+                    "INSERT INTO @free " +
+                    "SELECT TOP (@needed) Username, ROW_NUMBER() OVER (ORDER BY Username) " +
+                      "FROM Availabilities WITH (UPDLOCK, HOLDLOCK) WHERE Time = @time ORDER BY Username; " +
+                    "SET @placeable = (SELECT COUNT(*) FROM @free); " +
+                    "IF @doses < @placeable SET @placeable = CASE WHEN @doses > 0 THEN @doses ELSE 0 END; " +
+                    "IF @unknown = 0 AND @placeable = @needed BEGIN " +
+                        "DELETE Av FROM Availabilities Av JOIN @free F ON Av.Time = @time AND Av.Username = F.Username; " +
+                        "EXEC @status = TakeDoses @vaccine, @needed; " +
+                        // the doses counted above were taken concurrently
+                        "IF @status <> 0 THROW 50001, 'Not enough available doses', 1; " +
+                        "INSERT INTO Appointments (Time, Caregiver, Vaccine, Patient) " +
+                        "OUTPUT inserted.Appointment_id, inserted.Caregiver, inserted.Patient INTO @created " +
+                        "SELECT @time, F.Username, @vaccine, P.Patient FROM @patients P JOIN @free F ON P.Rn = F.Rn; " +
+                    "END " +
+                    "COMMIT TRANSACTION; " +
+                    "SELECT @placeable AS Placeable, @unknown AS UnknownPatients; " +
+                    "SELECT Appointment_id, Caregiver, Patient FROM @created ORDER BY Appointment_id;";
+            try {
+                PreparedStatement groupStatement = con.prepareStatement(reserveGroup);
+                groupStatement.setDate(1, time);
+                groupStatement.setString(2, vaccine);
+                for (int i = 0; i < patients.size(); i++) {
+                    groupStatement.setString(i + 3, patients.get(i));
+                }
+                boolean isResultSet = groupStatement.execute();
+                // skip any update counts before the first result set
+                while (!isResultSet && groupStatement.getUpdateCount() != -1) {
+                    isResultSet = groupStatement.getMoreResults();
+                }
+                ResultSet counts = groupStatement.getResultSet();
+                counts.next();
+                this.placeable = counts.getInt("Placeable");
+                this.unknownPatients = counts.getInt("UnknownPatients");
+                groupStatement.getMoreResults();
+                ResultSet created = groupStatement.getResultSet();
+                List<Appointment> appts = new ArrayList<>();
+                while (created.next()) {
+                    appts.add(new Appointment(time, created.getString("Caregiver"), vaccine,
+                                              created.getString("Patient"), created.getInt("Appointment_id")));
+                }
+                if (appts.isEmpty()) {
+                    return null;
+                }
+                ScheduleCache.invalidateDate(time);
+                ScheduleCache.invalidateDoses();
+                CaregiverSelector.CaregiverLoad.forget(time);
+                return appts;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class AppointmentSlotReserver {
+        private final Date time;
+        private final String vaccine;
+        private final String patient;
+        // requested slot start in minutes from midnight, or -1 for the earliest free slot
+        private final int requestedMinute;
+        private boolean slotAvailable;
+        private boolean dosesAvailable;
+        // whether the booked caregiver still had a day-level availability, which the booking took
+        private boolean tookAvailability;
+
+        public AppointmentSlotReserver(Date time, String vaccine, String patient, int requestedMinute) {
+            this.time = time;
+            this.vaccine = vaccine;
+            this.patient = patient;
+            this.requestedMinute = requestedMinute;
+        }
+
+        public boolean slotAvailable() { return slotAvailable; }
+
+        public boolean dosesAvailable() { return dosesAvailable; }
+
+        // Book a time slot (the requested one, or the earliest free one) with a caregiver working then, and take a
+        // dose, in one transaction. Returns null, claiming nothing, if no slot is free or no doses are left.
+        public Appointment reserve() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                con.setAutoCommit(false);
+                Appointment appt = reserve(con);
+                if (appt == null) {
+                    con.rollback();
+                    return null;
+                }
+                con.commit();
+                if (tookAvailability) {
+                    ScheduleCache.invalidateDate(time);
+                }
+                ScheduleCache.invalidateDoses();
+                CaregiverSelector.CaregiverLoad.recordBooking(time, appt.getCaregiver());
+                return appt;
+            } catch (SQLException e) {
+                // the cached allocators may hold a booking that was rolled back
+                SlotAllocator.forget(time);
+                try {
+                    con.rollback();
+                } catch (SQLException r) {
+                    e.addSuppressed(r);
+                }
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        // The caller rolls back when this returns null
+        private Appointment reserve(Connection con) throws SQLException {
+            // Remove dose from vaccine (a random stripe of a striped vaccine)
+            this.dosesAvailable = Vaccine.takeDoses(con, vaccine, 1);
+            this.slotAvailable = false;
+            if (!dosesAvailable) {
+                return null;
+            }
+            this.tookAvailability = false;
+            Map<String, SlotAllocator> allocators = SlotAllocator.cached(con, time);
+            // Insert the appointment into the chosen slot; the unique (Time, Caregiver, Slot_minute) index turns a
+            // slot taken concurrently into a failed insert, after which we choose again. The caregiver's day-level
+            // availability goes first, so the whole day can no longer be reserved, and a reservation of the whole
+            // day that holds it is waited for; no appointment is inserted if the caregiver has one.
+            String insertAppointment =
+                    "SET NOCOUNT ON; " +
+                    "DECLARE @time DATE = ?, @caregiver VARCHAR(255) = ?, @took INT; " +
+                    "DECLARE @created TABLE (Appointment_id INT); " +
+                    "DELETE FROM Availabilities WHERE Time = @time AND Username = @caregiver; " +
+                    "SET @took = @@ROWCOUNT; " +
+                    "INSERT INTO Appointments (Time, Caregiver, Vaccine, Patient, Slot_minute) " +
+                    "OUTPUT inserted.Appointment_id INTO @created " +
+                    "SELECT @time, @caregiver, ?, ?, ? " +
+                     "WHERE NOT EXISTS (SELECT 1 FROM Appointments " +
+                                        "WHERE Time = @time AND Caregiver = @caregiver AND Slot_minute IS NULL); " +
+                    "SELECT Appointment_id, @took AS Took FROM @created;";
+            PreparedStatement appointmentStatement = con.prepareStatement(insertAppointment);
+            Appointment appt = null;
+            while (appt == null) {
+                int minute = -1;
+                List<String> candidates = new ArrayList<>();
+                if (requestedMinute >= 0) {
+                    minute = requestedMinute;
+                    for (Map.Entry<String, SlotAllocator> allocator : allocators.entrySet()) {
+                        if (allocator.getValue().isFree(minute)) {
+                            candidates.add(allocator.getKey());
+                        }
+                    }
+                } else {
+                    // earliest free slot of any caregiver, and every caregiver free at that slot
+                    for (Map.Entry<String, SlotAllocator> allocator : allocators.entrySet()) {
+                        int first = allocator.getValue().firstFree(0);
+                        if (first >= 0 && (minute < 0 || first < minute)) {
+                            minute = first;
+                            candidates.clear();
+                        }
+                        if (first >= 0 && first == minute) {
+                            candidates.add(allocator.getKey());
+                        }
+                    }
+                }
+                if (candidates.isEmpty()) {
+                    return null;
+                }
+                String caregiver = CaregiverSelector.current().select(con, time, candidates);
+                appointmentStatement.setDate(1, time);
+                appointmentStatement.setString(2, caregiver);
+                appointmentStatement.setString(3, vaccine);
+                appointmentStatement.setString(4, patient);
+                appointmentStatement.setInt(5, minute);
+                try {
+                    ResultSet ID = appointmentStatement.executeQuery();
+                    if (!ID.next()) {
+                        // booked for the whole day since the allocators were loaded
+                        allocators.remove(caregiver);
+                        continue;
+                    }
+                    appt = new Appointment(time, caregiver, vaccine, patient, ID.getInt("Appointment_id"), minute);
+                    this.tookAvailability = ID.getInt("Took") > 0;
+                } catch (SQLException e) {
+                    // 2601: duplicate key in a unique index
+                    if (e.getErrorCode() != 2601) {
+                        throw e;
+                    }
+                }
+                allocators.get(caregiver).book(minute);
+            }
+            this.slotAvailable = true;
+            return appt;
+        }
     }
 
     public static class AppointmentBuilder {
@@ -92,24 +687,22 @@ public class Appointment {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
             try {
-                // Add appointment
-                String insertAppointment = "INSERT INTO Appointments VALUES (?, ?, ?, ?)";
+                // Add appointment and get its ID
+                String insertAppointment = "SET NOCOUNT ON; " +
+                                           "DECLARE @created TABLE (Appointment_id INT); " +
+                                           "INSERT INTO Appointments (Time, Caregiver, Vaccine, Patient) " +
+                                           "OUTPUT inserted.Appointment_id INTO @created VALUES (?, ?, ?, ?); " +
+                                           "SELECT Appointment_id FROM @created;";
                 PreparedStatement appointmentStatement = con.prepareStatement(insertAppointment);
                 appointmentStatement.setDate(1, time);
                 appointmentStatement.setString(2, caregiver);
                 appointmentStatement.setString(3, vaccine);
                 appointmentStatement.setString(4, patient);
-                appointmentStatement.executeUpdate();
-                // Get appointment ID
-                String getID = "SELECT Appointment_id FROM Appointments WHERE Time = ? AND Caregiver = ?";
-                PreparedStatement IDStatement = con.prepareStatement(getID);
-                IDStatement.setDate(1, time);
-                IDStatement.setString(2, caregiver);
-                ResultSet ID = IDStatement.executeQuery();
+                ResultSet ID = appointmentStatement.executeQuery();
                 ID.next();
                 this.appointmentID = ID.getInt("Appointment_id");
             } catch (SQLException e) {
-                throw new SQLException();
+                throw e;
             } finally {
                 cm.closeConnection();
             }
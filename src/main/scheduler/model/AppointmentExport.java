@@ -0,0 +1,292 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Streams every row of Appointments to a file, optionally with each vaccine's current doses. Rows come through a
+// forward-only, read-only result set on a connection with adaptive response buffering and go out through a fixed-size
+// buffer on a file channel, so memory use doesn't grow with the table.
+public class AppointmentExport {
+    public enum Format { CSV, COLUMNAR }
+
+    // rows the driver asks the server for at a time
+    private static final int FETCH_SIZE = 1000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // rows per row group of the columnar format
+    private static final int ROW_GROUP_SIZE = 8192;
+    private static final String[] COLUMNS =
+            {"Appointment_id", "Time", "Caregiver", "Vaccine", "Patient", "Slot_minute"};
+
+    private final Path file;
+    private final Format format;
+    private final boolean withVaccines;
+
+    public AppointmentExport(Path file, Format format, boolean withVaccines) {
+        this.file = file;
+        this.format = format;
+        this.withVaccines = withVaccines;
+    }
+
+    // Returns the number of appointments written
+    public long export() throws SQLException, IOException {
+        String selectAppointments = withVaccines ?
+                "SELECT A.Appointment_id, A.Time, A.Caregiver, A.Vaccine, A.Patient, A.Slot_minute, " +
+                       "I.Doses AS Vaccine_doses " +
+                  "FROM Appointments A JOIN VaccineInventory I ON I.Name = A.Vaccine " +
+                 "ORDER BY A.Appointment_id" :
+                "SELECT Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute " +
+                  "FROM Appointments ORDER BY Appointment_id";
+        ConnectionManager cm = new ConnectionManager();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            Connection con = cm.createStreamingConnection();
+            PreparedStatement statement = con.prepareStatement(selectAppointments, ResultSet.TYPE_FORWARD_ONLY,
+                                                               ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(FETCH_SIZE);
+            ResultSet rows = statement.executeQuery();
+            Output out = new Output(channel);
+            RowWriter writer = format == Format.CSV ? new CsvWriter(out) : new ColumnarWriter(out);
+            long count = 0;
+            while (rows.next()) {
+                writer.write(rows);
+                count++;
+            }
+            writer.finish();
+            out.flush();
+            channel.force(false);
+            return count;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private String[] columns() {
+        List<String> columns = new ArrayList<>(List.of(COLUMNS));
+        if (withVaccines) {
+            columns.add("Vaccine_doses");
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    private interface RowWriter {
+        void write(ResultSet row) throws SQLException, IOException;
+
+        void finish() throws IOException;
+    }
+
+    // Header line, then one line per appointment; a missing slot or name is an empty field, and a field holding a
+    // comma, quote or line break is quoted
+    private class CsvWriter implements RowWriter {
+        private final Output out;
+
+        CsvWriter(Output out) throws IOException {
+            this.out = out;
+            out.putText(String.join(",", columns()) + "\n");
+        }
+
+        @Override
+        public void write(ResultSet row) throws SQLException, IOException {
+            StringBuilder line = new StringBuilder();
+            line.append(row.getInt("Appointment_id")).append(',')
+                .append(row.getDate("Time")).append(',')
+                .append(quote(row.getString("Caregiver"))).append(',')
+                .append(quote(row.getString("Vaccine"))).append(',')
+                .append(quote(row.getString("Patient"))).append(',');
+            int slot = row.getInt("Slot_minute");
+            if (!row.wasNull()) {
+                line.append(slot);
+            }
+            if (withVaccines) {
+                line.append(',').append(row.getInt("Vaccine_doses"));
+            }
+            out.putText(line.append('\n').toString());
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        private String quote(String field) {
+            if (field == null) {
+                return "";
+            }
+            if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0
+                    && field.indexOf('\r') < 0) {
+                return field;
+            }
+            return '"' + field.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    // Rows are written in groups of ROW_GROUP_SIZE, each column of a group stored contiguously:
+    //   file:      "APPTCOL1", int column count, column names (short length + UTF-8), row groups, int 0
+    //   row group: int row count, then per column either row count ints (ids, epoch days of Time, slot minutes
+    //              with -1 for none, doses) or, for names, an int dictionary size, the distinct values
+    //              (short length + UTF-8, or length -1 for a missing name) and row count int codes into them
+    // All numbers are big-endian.
+    private class ColumnarWriter implements RowWriter {
+        private final Output out;
+        private final int[] ids = new int[ROW_GROUP_SIZE];
+        private final int[] days = new int[ROW_GROUP_SIZE];
+        private final int[] slots = new int[ROW_GROUP_SIZE];
+        private final int[] doses = new int[ROW_GROUP_SIZE];
+        private final Dictionary caregivers = new Dictionary();
+        private final Dictionary vaccines = new Dictionary();
+        private final Dictionary patients = new Dictionary();
+        private int rows = 0;
+
+        ColumnarWriter(Output out) throws IOException {
+            this.out = out;
+            out.putBytes("APPTCOL1".getBytes(StandardCharsets.US_ASCII));
+            String[] columns = columns();
+            out.putInt(columns.length);
+            for (String column : columns) {
+                out.putString(column);
+            }
+        }
+
+        @Override
+        public void write(ResultSet row) throws SQLException, IOException {
+            ids[rows] = row.getInt("Appointment_id");
+            days[rows] = (int) row.getDate("Time").toLocalDate().toEpochDay();
+            caregivers.add(rows, row.getString("Caregiver"));
+            vaccines.add(rows, row.getString("Vaccine"));
+            patients.add(rows, row.getString("Patient"));
+            int slot = row.getInt("Slot_minute");
+            slots[rows] = row.wasNull() ? -1 : slot;
+            if (withVaccines) {
+                doses[rows] = row.getInt("Vaccine_doses");
+            }
+            if (++rows == ROW_GROUP_SIZE) {
+                writeGroup();
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (rows > 0) {
+                writeGroup();
+            }
+            out.putInt(0);
+        }
+
+        private void writeGroup() throws IOException {
+            out.putInt(rows);
+            out.putInts(ids, rows);
+            out.putInts(days, rows);
+            caregivers.write(out, rows);
+            vaccines.write(out, rows);
+            patients.write(out, rows);
+            out.putInts(slots, rows);
+            if (withVaccines) {
+                out.putInts(doses, rows);
+            }
+            rows = 0;
+        }
+    }
+
+    // Distinct values of one name column within a row group, and each row's index into them
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private final int[] rowCodes = new int[ROW_GROUP_SIZE];
+
+        void add(int row, String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            rowCodes[row] = code;
+        }
+
+        void write(Output out, int rows) throws IOException {
+            out.putInt(values.size());
+            for (String value : values) {
+                if (value == null) {
+                    out.putShort((short) -1);
+                } else {
+                    out.putString(value);
+                }
+            }
+            out.putInts(rowCodes, rows);
+            codes.clear();
+            values.clear();
+        }
+    }
+
+    // Fixed-size buffer in front of the file channel
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putText(String text) throws IOException {
+            putBytes(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) {
+                flush();
+            }
+            buffer.putInt(value);
+        }
+
+        void putInts(int[] values, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                putInt(values[i]);
+            }
+        }
+
+        void putShort(short value) throws IOException {
+            if (buffer.remaining() < Short.BYTES) {
+                flush();
+            }
+            buffer.putShort(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putShort((short) bytes.length);
+            putBytes(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Background job that deletes availabilities and working windows dated before today, moves appointments older than
+// the horizon to AppointmentsArchive, and deletes the expired request IDs in IdempotencyKeys. Rows go BATCH_SIZE at
+// a time, oldest first, each batch in its own short transactions with a pause in between, so the job never holds
+// locks for long and can run next to reservations.
+// The horizon is $ArchiveHorizonDays days before today (default 90).
+public class Archiver {
+    private static final int HORIZON_DAYS = System.getenv("ArchiveHorizonDays") != null ?
+                                            Integer.parseInt(System.getenv("ArchiveHorizonDays")) : 90;
+    private static final int BATCH_SIZE = 500;
+    // pause between batches, to leave the locks to the commands
+    private static final long BATCH_PAUSE_MILLIS = 200;
+    private static final long INTERVAL_MINUTES = 60;
+
+    private static ScheduledExecutorService executor = null;
+
+    // Run the job now and then every INTERVAL_MINUTES, on a daemon thread
+    public static synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(Archiver::runQuietly, 0, INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    // Purge past availability, then archive and purge everything older than the horizon; returns the number of
+    // appointments archived
+    public static long run() throws SQLException {
+        LocalDate today = LocalDate.now();
+        Date before = Date.valueOf(today.minusDays(HORIZON_DAYS));
+        long archived = 0;
+        long purged = 0;
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            purged += purgePastAvailability(con, Date.valueOf(today));
+            PreparedStatement statement = con.prepareStatement("EXEC ArchiveBatch ?, ?");
+            statement.setDate(1, before);
+            statement.setInt(2, BATCH_SIZE);
+            while (true) {
+                ResultSet resultSet = statement.executeQuery();
+                resultSet.next();
+                int appointments = resultSet.getInt("Appointments");
+                int availabilities = resultSet.getInt("Availabilities");
+                int windows = resultSet.getInt("Windows");
+                int dates = resultSet.getInt("Dates");
+                archived += appointments;
+                purged += availabilities + windows;
+                Metrics.add("archive.appointments", appointments);
+                Metrics.add("archive.availabilities", availabilities + windows);
+                if (Math.max(Math.max(appointments, availabilities), Math.max(windows, dates)) < BATCH_SIZE) {
+                    break;
+                }
+                Thread.sleep(BATCH_PAUSE_MILLIS);
+            }
+            purgeIdempotencyKeys(con);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cm.closeConnection();
+            if (purged > 0) {
+                ScheduleCache.invalidateAllDates();
+            }
+        }
+        return archived;
+    }
+
+    // A past date can't be booked, so its availabilities and working windows only inflate DailyCapacity (through the
+    // Availabilities trigger) and the searches; returns the number of rows deleted
+    private static long purgePastAvailability(Connection con, Date today) throws SQLException, InterruptedException {
+        long purged = 0;
+        for (String table : new String[] {"Availabilities", "WorkingWindows"}) {
+            PreparedStatement statement = con.prepareStatement(
+                    "WITH Batch AS (SELECT TOP (" + BATCH_SIZE + ") * FROM " + table + " WHERE Time < ? " +
+                                   "ORDER BY Time) " +
+                    "DELETE FROM Batch");
+            statement.setDate(1, today);
+            while (true) {
+                int rows = statement.executeUpdate();
+                purged += rows;
+                Metrics.add("archive.availabilities", rows);
+                if (rows < BATCH_SIZE) {
+                    break;
+                }
+                Thread.sleep(BATCH_PAUSE_MILLIS);
+            }
+        }
+        return purged;
+    }
+
+    // Expired keys are never read again (IdempotencyKey.find skips them), so deleting them here keeps the range
+    // deletes out of the reserve and cancel transactions
+    private static void purgeIdempotencyKeys(Connection con) throws SQLException, InterruptedException {
+        PreparedStatement statement = con.prepareStatement(
+                "DELETE TOP (" + BATCH_SIZE + ") FROM IdempotencyKeys WHERE Expires <= SYSUTCDATETIME()");
+        while (true) {
+            int keys = statement.executeUpdate();
+            Metrics.add("archive.idempotency_keys", keys);
+            if (keys < BATCH_SIZE) {
+                break;
+            }
+            Thread.sleep(BATCH_PAUSE_MILLIS);
+        }
+    }
+
+    private static void runQuietly() {
+        try {
+            run();
+            Metrics.increment("archive.runs");
+        } catch (SQLException | RuntimeException e) {
+            // tried again at the next interval; a scheduled task that throws is never run again
+            Metrics.increment("archive.failures");
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.util.HashAdmission;
 import scheduler.util.Util;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class Caregiver {
     private final String username;
@@ -48,29 +51,197 @@ public class Caregiver {
             statement.setBytes(3, this.hash);
             statement.executeUpdate();
         } catch (SQLException e) {
-            throw new SQLException();
+            throw e;
         } finally {
             cm.closeConnection();
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
+    // writeID is recorded in AppliedWrites with the availability (see PendingWrite)
+    public void uploadAvailability(Date d, String writeID) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
         String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
+            con.setAutoCommit(false);
+            if (PendingWrite.claim(con, writeID)) {
+                PreparedStatement statement = con.prepareStatement(addAvailability);
+                statement.setDate(1, d);
+                statement.setString(2, this.username);
+                statement.executeUpdate();
+            }
+            con.commit();
+            ScheduleCache.invalidateDate(d);
+        } catch (SQLException e) {
+            try {
+                con.rollback();
+            } catch (SQLException r) {
+                e.addSuppressed(r);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Publish working hours [startMinute, endMinute) on a date, which reservations split into time slots
+    public void uploadWindow(Date d, int startMinute, int endMinute) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addWindow = "INSERT INTO WorkingWindows (Time, Username, Start_minute, End_minute) VALUES (?, ?, ?, ?)";
+        try {
+            PreparedStatement statement = con.prepareStatement(addWindow);
             statement.setDate(1, d);
             statement.setString(2, this.username);
+            statement.setInt(3, startMinute);
+            statement.setInt(4, endMinute);
             statement.executeUpdate();
+            SlotAllocator.forget(d);
         } catch (SQLException e) {
-            throw new SQLException();
+            throw e;
         } finally {
             cm.closeConnection();
         }
     }
 
+    // Mark this caregiver unavailable from one date to another (inclusive). Their availabilities and working windows
+    // in the range are removed, every appointment they had is moved to another caregiver who is free that date (and
+    // time slot), and the ones that cannot be placed are cancelled with their doses restored. Everything happens in
+    // one set-based transaction.
+    public Reassignment markUnavailable(Date from, Date to) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String markUnavailable =
+                "SET NOCOUNT ON; " +
+                "SET XACT_ABORT ON; " +
+                "DECLARE @caregiver VARCHAR(255) = ?, @from DATE = ?, @to DATE = ?; " +
+                "DECLARE @affected TABLE (Appointment_id INT PRIMARY KEY, Time DATE, Slot_minute INT, Rn INT); " +
+                "DECLARE @free TABLE (Time DATE, Slot_minute INT, Username VARCHAR(255), Rn INT); " +
+                "DECLARE @moved TABLE (Appointment_id INT, Time DATE, Caregiver VARCHAR(255), " +
+                                      "Vaccine VARCHAR(255), Patient VARCHAR(255), Slot_minute INT); " +
+                "DECLARE @cancelled TABLE (Appointment_id INT, Time DATE, Caregiver VARCHAR(255), " +
+                                          "Vaccine VARCHAR(255), Patient VARCHAR(255), Slot_minute INT); " +
+                "BEGIN TRANSACTION; " +
+                "DELETE FROM Availabilities WHERE Username = @caregiver AND Time BETWEEN @from AND @to; " +
+                "DELETE FROM WorkingWindows WHERE Username = @caregiver AND Time BETWEEN @from AND @to; " +
+                // number the affected appointments and the free caregivers per date and slot so they can be paired;
+                // day-level appointments have a NULL slot and pair with free day-level availability
+                "INSERT INTO @affected " +
+                "SELECT Appointment_id, Time, Slot_minute, " +
+                       "ROW_NUMBER() OVER (PARTITION BY Time, Slot_minute ORDER BY Appointment_id) " +
+                  "FROM Appointments WITH (UPDLOCK) " +
+                 "WHERE Caregiver = @caregiver AND Time BETWEEN @from AND @to; " +
+                "INSERT INTO @free " +
+                "SELECT Time, NULL, Username, ROW_NUMBER() OVER (PARTITION BY Time ORDER BY Username) " +
+                  "FROM Availabilities WITH (UPDLOCK, HOLDLOCK) " +
+                 "WHERE Time IN (SELECT Time FROM @affected WHERE Slot_minute IS NULL); " +
+                // a caregiver's overlapping windows can both cover a slot, so each free (Time, Slot_minute,
+                // Username) is numbered once; a duplicate would be paired with a second appointment in the same slot.
+                // A caregiver booked for the whole day has no free slots, and one offered for a day-level appointment
+                // above isn't offered slots too, since a moved slot appointment takes its day-level availability.
+                "INSERT INTO @free " +
+                "SELECT Time, Slot_minute, Username, " +
+                       "ROW_NUMBER() OVER (PARTITION BY Time, Slot_minute ORDER BY Username) " +
+                  "FROM (SELECT DISTINCT W.Time, S.Slot_minute, W.Username " +
+                          "FROM WorkingWindows W WITH (HOLDLOCK) " +
+                          "JOIN (SELECT DISTINCT Time, Slot_minute FROM @affected WHERE Slot_minute IS NOT NULL) S " +
+                            "ON W.Time = S.Time AND S.Slot_minute >= W.Start_minute " +
+                           "AND S.Slot_minute + " + SlotAllocator.SLOT_MINUTES + " <= W.End_minute " +
+                         "WHERE W.Username <> @caregiver " +
+                           "AND NOT EXISTS (SELECT 1 FROM Appointments Ap WITH (UPDLOCK, HOLDLOCK) " +
+                                           "WHERE Ap.Time = W.Time AND Ap.Caregiver = W.Username " +
+                                             "AND (Ap.Slot_minute = S.Slot_minute OR Ap.Slot_minute IS NULL)) " +
+                           "AND NOT EXISTS (SELECT 1 FROM @free D " +
+                                           "WHERE D.Time = W.Time AND D.Username = W.Username)) C; " +
+                "UPDATE Ap SET Caregiver = F.Username " +
+                "OUTPUT inserted.Appointment_id, inserted.Time, inserted.Caregiver, inserted.Vaccine, " +
+                       "inserted.Patient, inserted.Slot_minute INTO @moved " +
+                  "FROM Appointments Ap " +
+                  "JOIN @affected A ON Ap.Time = A.Time AND Ap.Appointment_id = A.Appointment_id " +
+                  "JOIN @free F ON F.Time = A.Time AND F.Rn = A.Rn " +
+                   "AND (F.Slot_minute = A.Slot_minute OR (F.Slot_minute IS NULL AND A.Slot_minute IS NULL)) " +
+                 // joining on Time as well seeks the clustered key and limits the update to the range's partitions
+                 "WHERE Ap.Time BETWEEN @from AND @to; " +
+                "DELETE Av FROM Availabilities Av " +
+                  "JOIN @moved M ON Av.Time = M.Time AND Av.Username = M.Caregiver; " +
+                // whatever could not be moved is cancelled
+                "DELETE Ap " +
+                "OUTPUT deleted.Appointment_id, deleted.Time, deleted.Caregiver, deleted.Vaccine, deleted.Patient, " +
+                       "deleted.Slot_minute INTO @cancelled " +
+                  "FROM Appointments Ap " +
+                  "JOIN @affected A ON Ap.Time = A.Time AND Ap.Appointment_id = A.Appointment_id " +
+                 "WHERE Ap.Time BETWEEN @from AND @to " +
+                   "AND A.Appointment_id NOT IN (SELECT Appointment_id FROM @moved); " +
+                // give the cancelled doses back, one call per vaccine
+                "DECLARE @vaccine VARCHAR(255), @count INT; " +
+                "DECLARE doses CURSOR LOCAL FAST_FORWARD FOR " +
+                "SELECT Vaccine, COUNT(*) FROM @cancelled GROUP BY Vaccine; " +
+                "OPEN doses; " +
+                "FETCH NEXT FROM doses INTO @vaccine, @count; " +
+                "WHILE @@FETCH_STATUS = 0 BEGIN " +
+                    "EXEC PutDoses @vaccine, @count; " +
+                    "FETCH NEXT FROM doses INTO @vaccine, @count; " +
+                "END " +
+                "CLOSE doses; " +
+                "DEALLOCATE doses; " +
+                "COMMIT TRANSACTION; " +
+                "SELECT Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute FROM @moved " +
+                 "ORDER BY Appointment_id; " +
+                "SELECT Appointment_id, Time, Caregiver, Vaccine, Patient, Slot_minute FROM @cancelled " +
+                 "ORDER BY Appointment_id;";
+        try {
+            PreparedStatement statement = con.prepareStatement(markUnavailable);
+            statement.setString(1, this.username);
+            statement.setDate(2, from);
+            statement.setDate(3, to);
+            boolean isResultSet = statement.execute();
+            // skip any update counts before the first result set
+            while (!isResultSet && statement.getUpdateCount() != -1) {
+                isResultSet = statement.getMoreResults();
+            }
+            List<Appointment> moved = readAppointments(statement.getResultSet());
+            statement.getMoreResults();
+            List<Appointment> cancelled = readAppointments(statement.getResultSet());
+            ScheduleCache.invalidateAllDates();
+            if (!cancelled.isEmpty()) {
+                ScheduleCache.invalidateDoses();
+            }
+            return new Reassignment(moved, cancelled);
+        } catch (SQLException e) {
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static List<Appointment> readAppointments(ResultSet resultSet) throws SQLException {
+        List<Appointment> appts = new ArrayList<>();
+        while (resultSet.next()) {
+            appts.add(new Appointment(resultSet.getDate("Time"), resultSet.getString("Caregiver"),
+                                      resultSet.getString("Vaccine"), resultSet.getString("Patient"),
+                                      resultSet.getInt("Appointment_id"), Appointment.getSlotMinute(resultSet)));
+        }
+        return appts;
+    }
+
+    // Result of markUnavailable: appointments moved to another caregiver, and appointments that were cancelled
+    public static class Reassignment {
+        private final List<Appointment> moved;
+        private final List<Appointment> cancelled;
+
+        private Reassignment(List<Appointment> moved, List<Appointment> cancelled) {
+            this.moved = moved;
+            this.cancelled = cancelled;
+        }
+
+        public List<Appointment> getMoved() { return moved; }
+
+        public List<Appointment> getCancelled() { return cancelled; }
+    }
+
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
@@ -98,36 +269,39 @@ public class Caregiver {
             this.password = password;
         }
 
-        public Caregiver get() throws SQLException {
+        public Caregiver get() throws SQLException, HashAdmission.BusyException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
             String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+            byte[] salt = null;
+            byte[] hash = null;
             try {
                 PreparedStatement statement = con.prepareStatement(getCaregiver);
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
+                    salt = resultSet.getBytes("Salt");
                     // we need to call Util.trim() to get rid of the paddings,
                     // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
+                    hash = Util.trim(resultSet.getBytes("Hash"));
                 }
-                return null;
             } catch (SQLException e) {
-                throw new SQLException();
+                throw e;
             } finally {
                 cm.closeConnection();
             }
+            if (salt == null) {
+                return null;
+            }
+            // check if the password matches; the connection is closed first so it isn't held while hashes queue
+            byte[] calculatedHash = HashAdmission.generateHash(password, salt);
+            if (!Arrays.equals(hash, calculatedHash)) {
+                return null;
+            }
+            this.salt = salt;
+            this.hash = hash;
+            return new Caregiver(this);
         }
     }
 }
@@ -0,0 +1,246 @@
+package scheduler.model;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Chooses which free caregiver reserve assigns. Spreading assignments keeps early-alphabet caregivers from being
+// booked on every date and keeps concurrent reservations from all claiming the same availability row.
+public abstract class CaregiverSelector {
+    // bookings within this many days either side of a date count towards a caregiver's load
+    private static final int LOAD_WINDOW_DAYS = 3;
+
+    public static final CaregiverSelector ALPHABETICAL = new CaregiverSelector("alphabetical") {
+        @Override
+        String select(Connection con, Date time, List<String> freeCaregivers) {
+            return freeCaregivers.get(0);
+        }
+    };
+
+    // date -> caregiver assigned last on that date, for round_robin
+    private static final Map<Date, String> lastAssigned = new DateMap<>();
+
+    public static final CaregiverSelector ROUND_ROBIN = new CaregiverSelector("round_robin") {
+        @Override
+        String select(Connection con, Date time, List<String> freeCaregivers) {
+            synchronized (lastAssigned) {
+                // the first caregiver after the last one assigned, wrapping around
+                String last = lastAssigned.get(time);
+                String next = freeCaregivers.get(0);
+                if (last != null) {
+                    for (String caregiver : freeCaregivers) {
+                        if (caregiver.compareTo(last) > 0) {
+                            next = caregiver;
+                            break;
+                        }
+                    }
+                }
+                lastAssigned.put(time, next);
+                return next;
+            }
+        }
+    };
+
+    public static final CaregiverSelector LEAST_BOOKED = new CaregiverSelector("least_booked") {
+        @Override
+        String select(Connection con, Date time, List<String> freeCaregivers) throws SQLException {
+            return CaregiverLoad.leastBooked(con, time, freeCaregivers);
+        }
+    };
+
+    public static final CaregiverSelector RANDOM = new CaregiverSelector("random") {
+        @Override
+        String select(Connection con, Date time, List<String> freeCaregivers) {
+            return freeCaregivers.get(ThreadLocalRandom.current().nextInt(freeCaregivers.size()));
+        }
+    };
+
+    private static final CaregiverSelector[] STRATEGIES = {ALPHABETICAL, ROUND_ROBIN, LEAST_BOOKED, RANDOM};
+    private static volatile CaregiverSelector current = ALPHABETICAL;
+
+    private final String name;
+
+    private CaregiverSelector(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Pick one of freeCaregivers (non-empty, sorted by username) for an appointment on time; anything read from the
+    // database is read on con, in the caller's transaction
+    abstract String select(Connection con, Date time, List<String> freeCaregivers) throws SQLException;
+
+    public static CaregiverSelector current() {
+        return current;
+    }
+
+    public static void setCurrent(CaregiverSelector selector) {
+        current = selector;
+    }
+
+    // Returns null for an unknown strategy name
+    public static CaregiverSelector forName(String name) {
+        for (CaregiverSelector strategy : STRATEGIES) {
+            if (strategy.name.equals(name)) {
+                return strategy;
+            }
+        }
+        return null;
+    }
+
+    // Dates changed in ways we don't track individually (see ScheduleCache.invalidateAllDates)
+    static void forgetAllDates() {
+        synchronized (lastAssigned) {
+            lastAssigned.clear();
+        }
+        CaregiverLoad.forgetAll();
+    }
+
+    // Per-date state, bounded like ScheduleCache: the dates used least recently go first
+    private static class DateMap<V> extends LinkedHashMap<Date, V> {
+        private static final long serialVersionUID = 1L;
+
+        DateMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Date, V> eldest) {
+            return size() > ScheduleCache.MAX_DATES;
+        }
+    }
+
+    // In-memory bookings per caregiver in the window around each date, loaded from Appointments the first time a
+    // date is needed and then kept up to date by reserve and cancel. Each window also keeps its caregivers ordered by
+    // bookings, so the least booked free caregiver is found without adding up every caregiver's days.
+    public static class CaregiverLoad {
+        private static final Map<Date, Window> windows = new DateMap<>();
+        // bumped by every change, so a window loaded while bookings changed is used once but not kept
+        private static long generation = 0;
+
+        static synchronized void recordBooking(Date time, String caregiver) {
+            record(time, caregiver, 1);
+        }
+
+        static synchronized void recordCancellation(Date time, String caregiver) {
+            record(time, caregiver, -1);
+        }
+
+        // Appointments changed on a date in a way we don't track individually; reload it next time
+        public static synchronized void forget(Date time) {
+            generation++;
+            for (int day = -LOAD_WINDOW_DAYS; day <= LOAD_WINDOW_DAYS; day++) {
+                windows.remove(Date.valueOf(time.toLocalDate().plusDays(day)));
+            }
+        }
+
+        public static synchronized void forgetAll() {
+            generation++;
+            windows.clear();
+        }
+
+        // a booking on time counts in the window of every date within LOAD_WINDOW_DAYS of it
+        private static void record(Date time, String caregiver, int delta) {
+            generation++;
+            for (int day = -LOAD_WINDOW_DAYS; day <= LOAD_WINDOW_DAYS; day++) {
+                Window window = windows.get(Date.valueOf(time.toLocalDate().plusDays(day)));
+                if (window != null) {
+                    window.add(caregiver, delta);
+                }
+            }
+        }
+
+        private static String leastBooked(Connection con, Date time, List<String> freeCaregivers)
+                throws SQLException {
+            long stamp;
+            synchronized (CaregiverLoad.class) {
+                Window window = windows.get(time);
+                if (window != null) {
+                    return window.leastBooked(freeCaregivers);
+                }
+                stamp = generation;
+            }
+            // loaded without holding the lock, so one date's query doesn't hold up every other reservation
+            Window window = load(con, time);
+            synchronized (CaregiverLoad.class) {
+                if (generation == stamp) {
+                    windows.put(time, window);
+                }
+                return window.leastBooked(freeCaregivers);
+            }
+        }
+
+        private static Window load(Connection con, Date time) throws SQLException {
+            LocalDate from = time.toLocalDate().minusDays(LOAD_WINDOW_DAYS);
+            LocalDate to = time.toLocalDate().plusDays(LOAD_WINDOW_DAYS);
+            String getBookings = "SELECT Caregiver, COUNT(*) AS Booked FROM Appointments " +
+                                  "WHERE Time BETWEEN ? AND ? GROUP BY Caregiver";
+            PreparedStatement statement = con.prepareStatement(getBookings);
+            statement.setDate(1, Date.valueOf(from));
+            statement.setDate(2, Date.valueOf(to));
+            ResultSet resultSet = statement.executeQuery();
+            Window window = new Window();
+            while (resultSet.next()) {
+                window.add(resultSet.getString("Caregiver"), resultSet.getInt("Booked"));
+            }
+            return window;
+        }
+    }
+
+    // Bookings per caregiver in the window around one date, by caregiver and by count
+    private static class Window {
+        private final Map<String, Integer> booked = new HashMap<>();
+        // bookings -> caregivers with that many, in username order; caregivers without bookings aren't listed
+        private final TreeMap<Integer, TreeSet<String>> byBooked = new TreeMap<>();
+
+        void add(String caregiver, int delta) {
+            int before = booked.getOrDefault(caregiver, 0);
+            int after = Math.max(0, before + delta);
+            if (before > 0) {
+                TreeSet<String> caregivers = byBooked.get(before);
+                caregivers.remove(caregiver);
+                if (caregivers.isEmpty()) {
+                    byBooked.remove(before);
+                }
+            }
+            if (after > 0) {
+                booked.put(caregiver, after);
+                byBooked.computeIfAbsent(after, b -> new TreeSet<>()).add(caregiver);
+            } else {
+                booked.remove(caregiver);
+            }
+        }
+
+        // The free caregiver with the fewest bookings; ties go to the first alphabetically
+        String leastBooked(List<String> freeCaregivers) {
+            for (String caregiver : freeCaregivers) {
+                if (!booked.containsKey(caregiver)) {
+                    return caregiver;
+                }
+            }
+            Set<String> free = new HashSet<>(freeCaregivers);
+            for (TreeSet<String> caregivers : byBooked.values()) {
+                for (String caregiver : caregivers) {
+                    if (free.contains(caregiver)) {
+                        return caregiver;
+                    }
+                }
+            }
+            return freeCaregivers.get(0);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Free caregivers and booked appointments per date. The DailyCapacity table is maintained by triggers on
+// Availabilities and Appointments, in the same transaction as each write, so every write path keeps it current;
+// rebuild() recounts it from scratch and check() lists the dates where it disagrees with the base tables.
+public class DailyCapacity {
+    // isolation level of the SQL Server driver for snapshot transactions
+    private static final int TRANSACTION_SNAPSHOT = 4096;
+
+    private final Date time;
+    private final int freeCaregivers;
+    private final int bookedAppointments;
+    private final int actualFreeCaregivers;
+    private final int actualBookedAppointments;
+
+    private DailyCapacity(Date time, int freeCaregivers, int bookedAppointments, int actualFreeCaregivers,
+                          int actualBookedAppointments) {
+        this.time = time;
+        this.freeCaregivers = freeCaregivers;
+        this.bookedAppointments = bookedAppointments;
+        this.actualFreeCaregivers = actualFreeCaregivers;
+        this.actualBookedAppointments = actualBookedAppointments;
+    }
+
+    // Getters
+    public Date getTime() { return time; }
+
+    public int getFreeCaregivers() { return freeCaregivers; }
+
+    public int getBookedAppointments() { return bookedAppointments; }
+
+    public int getActualFreeCaregivers() { return actualFreeCaregivers; }
+
+    public int getActualBookedAppointments() { return actualBookedAppointments; }
+
+    // Recount every date from Availabilities and Appointments; returns the number of dates
+    public static int rebuild() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            PreparedStatement statement = con.prepareStatement("EXEC RebuildDailyCapacity");
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            return resultSet.getInt("Dates");
+        } finally {
+            cm.closeConnection();
+            ScheduleCache.invalidateAllDates();
+        }
+    }
+
+    // Dates whose summary row doesn't match the counts in the base tables. Both are read in one snapshot, so writes
+    // committed while the check runs don't show up as mismatches.
+    public static List<DailyCapacity> check() throws SQLException {
+        String compare = "SELECT COALESCE(D.Time, C.Time) AS Time, " +
+                                "COALESCE(D.FreeCaregivers, 0) AS FreeCaregivers, " +
+                                "COALESCE(D.BookedAppointments, 0) AS BookedAppointments, " +
+                                "COALESCE(C.Free, 0) AS Actual_free, COALESCE(C.Booked, 0) AS Actual_booked " +
+                           "FROM DailyCapacity D " +
+                           "FULL OUTER JOIN (SELECT Time, SUM(Free) AS Free, SUM(Booked) AS Booked " +
+                                              "FROM (SELECT Time, 1 AS Free, 0 AS Booked FROM Availabilities " +
+                                                    "UNION ALL " +
+                                                    "SELECT Time, 0, 1 FROM Appointments) Counts " +
+                                             "GROUP BY Time) C ON C.Time = D.Time " +
+                          "WHERE COALESCE(D.FreeCaregivers, 0) <> COALESCE(C.Free, 0) " +
+                             "OR COALESCE(D.BookedAppointments, 0) <> COALESCE(C.Booked, 0) " +
+                          "ORDER BY Time";
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            con.setTransactionIsolation(TRANSACTION_SNAPSHOT);
+            con.setAutoCommit(false);
+            try {
+                List<DailyCapacity> mismatches = new ArrayList<>();
+                ResultSet resultSet = con.prepareStatement(compare).executeQuery();
+                while (resultSet.next()) {
+                    mismatches.add(new DailyCapacity(resultSet.getDate("Time"), resultSet.getInt("FreeCaregivers"),
+                                                     resultSet.getInt("BookedAppointments"),
+                                                     resultSet.getInt("Actual_free"),
+                                                     resultSet.getInt("Actual_booked")));
+                }
+                con.commit();
+                return mismatches;
+            } catch (SQLException e) {
+                try {
+                    con.rollback();
+                } catch (SQLException r) {
+                    e.addSuppressed(r);
+                }
+                throw e;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package scheduler.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Client request IDs for reserve and cancel. The outcome of a request is stored with its key in the same
+// transaction as the work itself, so a retried request returns the original result instead of running again.
+// Keys are per operation, so a cancel never replays the outcome of a reserve; while a key is live its request ID
+// can't be used for the other operation.
+class IdempotencyKey {
+    // how long a request ID is remembered; Archiver deletes the expired keys
+    static final int TTL_HOURS = 24;
+
+    // Thrown by find() when the request ID is live for another operation
+    static class ReusedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        private final String operation;
+
+        ReusedException(String requestID, String operation) {
+            super("Request ID " + requestID + " was already used to " + operation);
+            this.operation = operation;
+        }
+
+        String getOperation() { return operation; }
+    }
+
+    // Returns the stored outcome of the request, or null if the request has not run yet. Locks the request ID so a
+    // concurrent attempt with the same ID waits for this transaction, whichever operation it is for.
+    static Appointment find(Connection con, String username, String requestID, String operation) throws SQLException {
+        String getKey = "SELECT Operation, Appointment_id, Time, Caregiver, Vaccine, Patient " +
+                          "FROM IdempotencyKeys WITH (UPDLOCK, HOLDLOCK) " +
+                         "WHERE Username = ? AND Request_id = ? AND Expires > SYSUTCDATETIME()";
+        PreparedStatement keyStatement = con.prepareStatement(getKey);
+        keyStatement.setString(1, username);
+        keyStatement.setString(2, requestID);
+        ResultSet key = keyStatement.executeQuery();
+        String other = null;
+        while (key.next()) {
+            if (key.getString("Operation").equals(operation)) {
+                return new Appointment(key.getDate("Time"), key.getString("Caregiver"), key.getString("Vaccine"),
+                                       key.getString("Patient"), key.getInt("Appointment_id"));
+            }
+            other = key.getString("Operation");
+        }
+        if (other != null) {
+            throw new ReusedException(requestID, other);
+        }
+        return null;
+    }
+
+    static void save(Connection con, String username, String requestID, String operation, Appointment appt)
+            throws SQLException {
+        // an expired key that Archiver hasn't deleted yet gives way to the new request
+        String dropExpired = "DELETE FROM IdempotencyKeys " +
+                              "WHERE Username = ? AND Request_id = ? AND Operation = ? " +
+                                "AND Expires <= SYSUTCDATETIME()";
+        PreparedStatement dropStatement = con.prepareStatement(dropExpired);
+        dropStatement.setString(1, username);
+        dropStatement.setString(2, requestID);
+        dropStatement.setString(3, operation);
+        dropStatement.executeUpdate();
+        String addKey = "INSERT INTO IdempotencyKeys (Username, Request_id, Operation, Appointment_id, Time, " +
+                                                     "Caregiver, Vaccine, Patient, Expires) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, DATEADD(HOUR, " + TTL_HOURS + ", SYSUTCDATETIME()))";
+        PreparedStatement keyStatement = con.prepareStatement(addKey);
+        keyStatement.setString(1, username);
+        keyStatement.setString(2, requestID);
+        keyStatement.setString(3, operation);
+        keyStatement.setInt(4, appt.getAppointmentID());
+        keyStatement.setDate(5, appt.getTime());
+        keyStatement.setString(6, appt.getCaregiver());
+        keyStatement.setString(7, appt.getVaccine());
+        keyStatement.setString(8, appt.getPatient());
+        keyStatement.executeUpdate();
+    }
+}
@@ -0,0 +1,98 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+// Appointments per month by vaccine and by caregiver, aggregated in the database over a read connection. The
+// queries touch only the columns of the optional Appointments_Columnstore index (migration
+// 002_appointments_columnstore) and, when it exists, read it in batch mode, so reports don't scan the rowstore that
+// reservations write to. Without the index they run the same queries against the clustered index.
+public class MonthlyRollup {
+    private static final String COLUMNSTORE = "Appointments_Columnstore";
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private boolean columnstore = false;
+    private final List<MonthCount> byVaccine = new ArrayList<>();
+    private final List<MonthCount> byCaregiver = new ArrayList<>();
+
+    public MonthlyRollup(Date from, Date to) {
+        this.from = from.toLocalDate();
+        this.to = to.toLocalDate();
+    }
+
+    // Whether the last run read the columnstore index
+    public boolean usedColumnstore() { return columnstore; }
+
+    public List<MonthCount> getByVaccine() { return byVaccine; }
+
+    public List<MonthCount> getByCaregiver() { return byCaregiver; }
+
+    public void run() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createReportConnection();
+            PreparedStatement findIndex = con.prepareStatement(
+                    "SELECT COUNT(*) AS Found FROM sys.indexes WHERE object_id = OBJECT_ID('Appointments') AND name = ?");
+            findIndex.setString(1, COLUMNSTORE);
+            ResultSet found = findIndex.executeQuery();
+            found.next();
+            columnstore = found.getInt("Found") > 0;
+            byVaccine.clear();
+            byCaregiver.clear();
+            load(con, "Vaccine", byVaccine);
+            load(con, "Caregiver", byCaregiver);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void load(Connection con, String column, List<MonthCount> counts) throws SQLException {
+        // a half-open range on the bare column, so whole partitions and row groups outside it are skipped
+        String rollup = "SELECT DATEFROMPARTS(YEAR(Time), MONTH(Time), 1) AS Month, " + column + " AS Name, " +
+                               "COUNT_BIG(*) AS Appointments, COUNT(DISTINCT Patient) AS Patients " +
+                          "FROM Appointments" + (columnstore ? " WITH (INDEX (" + COLUMNSTORE + "))" : "") + " " +
+                         "WHERE Time >= ? AND Time < ? " +
+                         "GROUP BY DATEFROMPARTS(YEAR(Time), MONTH(Time), 1), " + column + " " +
+                         "ORDER BY Month, Name";
+        PreparedStatement statement = con.prepareStatement(rollup);
+        statement.setDate(1, Date.valueOf(from));
+        statement.setDate(2, Date.valueOf(to.plusDays(1)));
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            counts.add(new MonthCount(resultSet.getDate("Month").toLocalDate(), resultSet.getString("Name"),
+                                      resultSet.getLong("Appointments"), resultSet.getLong("Patients")));
+        }
+    }
+
+    public static class MonthCount {
+        private final LocalDate month;
+        private final String name;
+        private final long appointments;
+        private final long patients;
+
+        MonthCount(LocalDate month, String name, long appointments, long patients) {
+            this.month = month;
+            this.name = name;
+            this.appointments = appointments;
+            this.patients = patients;
+        }
+
+        public LocalDate getMonth() { return month; }
+
+        // vaccine or caregiver
+        public String getName() { return name; }
+
+        public long getAppointments() { return appointments; }
+
+        public long getPatients() { return patients; }
+    }
+}
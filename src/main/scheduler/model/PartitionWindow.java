@@ -0,0 +1,71 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Background job that slides the monthly partitions of Appointments and Availabilities once a day: it keeps
+// MONTHS_AHEAD months of empty partitions ahead of today, and switches out the months that ended more than
+// $PartitionRetentionMonths months ago (default 24). Switching a month out is metadata-only, so dropping history
+// doesn't touch its rows; appointments the archival job hadn't moved yet stay in an AppointmentsArchive_<yyyymm>
+// table of their own, outside AppointmentHistory. See SlidePartitions in create.sql.
+public class PartitionWindow {
+    private static final int RETENTION_MONTHS = System.getenv("PartitionRetentionMonths") != null ?
+                                                Integer.parseInt(System.getenv("PartitionRetentionMonths")) : 24;
+    private static final int MONTHS_AHEAD = 3;
+    private static final long INTERVAL_HOURS = 24;
+
+    private static ScheduledExecutorService executor = null;
+
+    // Slide the window now and then every INTERVAL_HOURS, on a daemon thread
+    public static synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "partition-window");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(PartitionWindow::slideQuietly, 0, INTERVAL_HOURS, TimeUnit.HOURS);
+    }
+
+    // Returns the number of months switched out
+    public static int slide() throws SQLException {
+        LocalDate month = LocalDate.now().withDayOfMonth(1);
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            PreparedStatement statement = con.prepareStatement("EXEC SlidePartitions ?, ?");
+            statement.setDate(1, Date.valueOf(month.minusMonths(RETENTION_MONTHS)));
+            statement.setDate(2, Date.valueOf(month.plusMonths(MONTHS_AHEAD)));
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            Metrics.add("partition_window.added", resultSet.getInt("Added"));
+            Metrics.add("partition_window.removed", resultSet.getInt("Removed"));
+            return resultSet.getInt("Removed");
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void slideQuietly() {
+        try {
+            if (slide() > 0) {
+                ScheduleCache.invalidateAllDates();
+            }
+        } catch (SQLException | RuntimeException e) {
+            // tried again the next day; a scheduled task that throws is never run again
+            Metrics.increment("partition_window.failures");
+        }
+    }
+}
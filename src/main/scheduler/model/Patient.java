@@ -1,6 +1,7 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.util.HashAdmission;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -48,7 +49,7 @@ public class Patient {
             statement.setBytes(3, this.hash);
             statement.executeUpdate();
         } catch (SQLException e) {
-            throw new SQLException();
+            throw e;
         } finally {
             cm.closeConnection();
         }
@@ -81,33 +82,37 @@ public class Patient {
             this.password = password;
         }
 
-        public Patient get() throws SQLException {
+        public Patient get() throws SQLException, HashAdmission.BusyException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
             String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+            byte[] salt = null;
+            byte[] hash = null;
             try {
                 PreparedStatement statement = con.prepareStatement(getPatient);
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
+                    salt = resultSet.getBytes("Salt");
+                    hash = Util.trim(resultSet.getBytes("Hash"));
                 }
-                return null;
             } catch (SQLException e) {
-                throw new SQLException();
+                throw e;
             } finally {
                 cm.closeConnection();
             }
+            if (salt == null) {
+                return null;
+            }
+            // hashed after the connection is closed, so it isn't held while hashes queue
+            byte[] calculatedHash = HashAdmission.generateHash(password, salt);
+            if (!Arrays.equals(hash, calculatedHash)) {
+                return null;
+            }
+            this.salt = salt;
+            this.hash = hash;
+            return new Patient(this);
         }
     }
 }
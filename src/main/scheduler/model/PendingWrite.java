@@ -0,0 +1,310 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.RetryPolicy;
+import scheduler.util.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// A write accepted while the database was unreachable. It is appended to a local write-ahead log, and forced to disk,
+// before the command reports it as pending; replay() applies the log in order once the database is back. Each write
+// has a random ID that is stored in AppliedWrites in the same transaction as the write, by the command itself and by
+// replay, so a write whose reply was lost, or an entry replayed twice (e.g. the process died before the log was
+// trimmed), is only applied once. Entries the database rejects outright are moved to a dead-letter file next to the
+// log rather than holding up the ones after them.
+public class PendingWrite {
+    public static final String UPLOAD_AVAILABILITY = "upload_availability";
+    public static final String ADD_DOSES = "add_doses";
+
+    // entries applied per transaction
+    private static final int REPLAY_BATCH_SIZE = 100;
+    // after a replay fails to reach the database, wait this long before trying again
+    private static final long REPLAY_BACKOFF_MILLIS = 5000;
+    // AppliedWrites rows older than this are purged; pending writes replay long before then
+    private static final int APPLIED_RETENTION_DAYS = 7;
+    private static final Path LOG = Paths.get(System.getenv("PendingWritesLog") != null ?
+                                              System.getenv("PendingWritesLog") : "pending-writes.log");
+    // one line per rejected entry: the line it had in the log, then the error
+    private static final Path DEAD_LETTERS = LOG.resolveSibling(LOG.getFileName() + ".dead");
+
+    // What became of a write that failed on the way to the database
+    public enum Outcome { APPLIED, QUEUED, FAILED }
+
+    private static long lastUnreachable = 0;
+
+    private final String writeID;
+    private final String operation;
+    // caregiver username for upload_availability, vaccine name for add_doses
+    private final String name;
+    private final Date time;
+    private final int doses;
+
+    private PendingWrite(String writeID, String operation, String name, Date time, int doses) {
+        this.writeID = writeID;
+        this.operation = operation;
+        this.name = name;
+        this.time = time;
+        this.doses = doses;
+    }
+
+    // A write for the command to run with getWriteID(), and to settle() if it fails
+    public static PendingWrite availability(String caregiver, Date time) {
+        return new PendingWrite(UUID.randomUUID().toString(), UPLOAD_AVAILABILITY, caregiver, time, 0);
+    }
+
+    public static PendingWrite doses(String vaccine, int doses) {
+        return new PendingWrite(UUID.randomUUID().toString(), ADD_DOSES, vaccine, null, doses);
+    }
+
+    // Getters
+    public String getWriteID() { return writeID; }
+
+    public String getOperation() { return operation; }
+
+    public String getName() { return name; }
+
+    public Date getTime() { return time; }
+
+    public int getDoses() { return doses; }
+
+    // Decide what became of this write after the command failed with e. A write that never had a connection is
+    // queued. If the connection broke while it ran, it may have committed, so AppliedWrites is asked; when that
+    // can't be answered either, it is queued under the same ID, which replay skips if the write did commit.
+    public Outcome settle(SQLException e) throws IOException {
+        if (RetryPolicy.neverConnected(e)) {
+            append(this);
+            return Outcome.QUEUED;
+        }
+        if (!RetryPolicy.isUnreachable(e)) {
+            return Outcome.FAILED;
+        }
+        try {
+            return isApplied(writeID) ? Outcome.APPLIED : Outcome.FAILED;
+        } catch (SQLException checkFailure) {
+            append(this);
+            return Outcome.QUEUED;
+        }
+    }
+
+    // Record writeID in AppliedWrites inside con's transaction, before the write itself. Returns false, recording
+    // nothing, if it is there already: an earlier attempt committed the write and only its reply was lost.
+    static boolean claim(Connection con, String writeID) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(
+                "INSERT INTO AppliedWrites (Write_id, Applied) SELECT ?, SYSUTCDATETIME() " +
+                "WHERE NOT EXISTS (SELECT 1 FROM AppliedWrites WITH (UPDLOCK, HOLDLOCK) WHERE Write_id = ?)");
+        statement.setString(1, writeID);
+        statement.setString(2, writeID);
+        return statement.executeUpdate() == 1;
+    }
+
+    private static boolean isApplied(String writeID) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT COUNT(*) AS Found FROM AppliedWrites WHERE Write_id = ?");
+            statement.setString(1, writeID);
+            ResultSet found = statement.executeQuery();
+            found.next();
+            return found.getInt("Found") > 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Number of writes waiting to be replayed
+    public static synchronized int count() throws IOException {
+        return read().size();
+    }
+
+    // Apply the pending writes in log order, REPLAY_BATCH_SIZE per transaction, trimming the log after each batch.
+    // A batch the database rejects is applied again one entry at a time, and the entries rejected on their own are
+    // dead-lettered. Returns the writes applied; stops quietly if the database is still unreachable, and leaves the
+    // rest of the log for the next replay on any other transient failure.
+    public static synchronized List<PendingWrite> replay() throws SQLException, IOException {
+        List<PendingWrite> applied = new ArrayList<>();
+        if (!Files.exists(LOG) || System.currentTimeMillis() - lastUnreachable < REPLAY_BACKOFF_MILLIS) {
+            return applied;
+        }
+        List<PendingWrite> pending = read();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            con.setAutoCommit(false);
+            for (int from = 0; from < pending.size(); from += REPLAY_BATCH_SIZE) {
+                List<PendingWrite> batch = pending.subList(from, Math.min(from + REPLAY_BATCH_SIZE, pending.size()));
+                try {
+                    apply(con, batch);
+                    applied.addAll(batch);
+                    Metrics.add("pending_writes.replayed", batch.size());
+                    rewrite(pending.subList(from + batch.size(), pending.size()));
+                } catch (SQLException e) {
+                    if (RetryPolicy.isTransient(e)) {
+                        throw e;
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        replayAlone(con, batch.get(i), applied);
+                        rewrite(pending.subList(from + i + 1, pending.size()));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            if (!RetryPolicy.isUnreachable(e)) {
+                throw e;
+            }
+            lastUnreachable = System.currentTimeMillis();
+        } finally {
+            cm.closeConnection();
+            if (!applied.isEmpty()) {
+                ScheduleCache.invalidateAllDates();
+                ScheduleCache.invalidateDoses();
+            }
+        }
+        return applied;
+    }
+
+    // Apply one entry in its own transaction, or dead-letter it if the database rejects it
+    private static void replayAlone(Connection con, PendingWrite write, List<PendingWrite> applied)
+            throws SQLException, IOException {
+        try {
+            apply(con, List.of(write));
+            applied.add(write);
+            Metrics.increment("pending_writes.replayed");
+        } catch (SQLException e) {
+            if (RetryPolicy.isTransient(e)) {
+                throw e;
+            }
+            String line = write.toLine();
+            String deadLetter = line.substring(0, line.length() - 1) + "\t" + e.getErrorCode() + " " +
+                                String.valueOf(e.getMessage()).replaceAll("\\s+", " ") + "\n";
+            try (FileChannel channel = FileChannel.open(DEAD_LETTERS, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(deadLetter.getBytes(StandardCharsets.UTF_8)));
+                channel.force(false);
+            }
+            Metrics.increment("pending_writes.dead_lettered");
+        }
+    }
+
+    private static void apply(Connection con, List<PendingWrite> batch) throws SQLException {
+        String applyWrite =
+                "SET NOCOUNT ON; " +
+                "DECLARE @id VARCHAR(36) = ?, @operation VARCHAR(32) = ?, @name VARCHAR(255) = ?, @time DATE = ?, " +
+                        "@doses INT = ?; " +
+                "IF NOT EXISTS (SELECT 1 FROM AppliedWrites WITH (UPDLOCK, HOLDLOCK) WHERE Write_id = @id) BEGIN " +
+                    "INSERT INTO AppliedWrites (Write_id, Applied) VALUES (@id, SYSUTCDATETIME()); " +
+                    // an availability uploaded again in the meantime, or by a caregiver since removed, is skipped
+                    "IF @operation = '" + UPLOAD_AVAILABILITY + "' " +
+                       "AND EXISTS (SELECT 1 FROM Caregivers WHERE Username = @name) " +
+                       "AND NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) " +
+                                       "WHERE Time = @time AND Username = @name) " +
+                        "INSERT INTO Availabilities (Time, Username) VALUES (@time, @name); " +
+                    "IF @operation = '" + ADD_DOSES + "' BEGIN " +
+                        "IF EXISTS (SELECT 1 FROM Vaccines WITH (UPDLOCK, HOLDLOCK) WHERE Name = @name) " +
+                            "EXEC PutDoses @name, @doses; " +
+                        "ELSE " +
+                            "INSERT INTO Vaccines (Name, Doses) VALUES (@name, @doses); " +
+                    "END " +
+                "END";
+        try {
+            PreparedStatement statement = con.prepareStatement(applyWrite);
+            for (PendingWrite write : batch) {
+                statement.setString(1, write.writeID);
+                statement.setString(2, write.operation);
+                statement.setString(3, write.name);
+                if (write.time != null) {
+                    statement.setDate(4, write.time);
+                } else {
+                    statement.setNull(4, Types.DATE);
+                }
+                statement.setInt(5, write.doses);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            PreparedStatement purge = con.prepareStatement(
+                    "DELETE TOP (" + REPLAY_BATCH_SIZE + ") FROM AppliedWrites " +
+                    "WHERE Applied < DATEADD(DAY, -" + APPLIED_RETENTION_DAYS + ", SYSUTCDATETIME())");
+            purge.executeUpdate();
+            con.commit();
+        } catch (SQLException e) {
+            try {
+                con.rollback();
+            } catch (SQLException r) {
+                e.addSuppressed(r);
+            }
+            throw e;
+        }
+    }
+
+    private static synchronized void append(PendingWrite write) throws IOException {
+        try (FileChannel channel = FileChannel.open(LOG, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(write.toLine().getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+        Metrics.increment("pending_writes.queued");
+    }
+
+    // One tab-separated line per write: ID, operation, name, date or doses
+    private String toLine() {
+        String value = operation.equals(UPLOAD_AVAILABILITY) ? time.toString() : String.valueOf(doses);
+        return writeID + "\t" + operation + "\t" + name + "\t" + value + "\n";
+    }
+
+    private static List<PendingWrite> read() throws IOException {
+        List<PendingWrite> pending = new ArrayList<>();
+        if (!Files.exists(LOG)) {
+            return pending;
+        }
+        String log = new String(Files.readAllBytes(LOG), StandardCharsets.UTF_8);
+        // only complete lines; a torn last line from a crash mid-append was never acknowledged
+        for (String line : log.substring(0, log.lastIndexOf('\n') + 1).split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                continue;
+            }
+            if (fields[1].equals(UPLOAD_AVAILABILITY)) {
+                pending.add(new PendingWrite(fields[0], fields[1], fields[2], Date.valueOf(fields[3]), 0));
+            } else {
+                pending.add(new PendingWrite(fields[0], fields[1], fields[2], null, Integer.parseInt(fields[3])));
+            }
+        }
+        return pending;
+    }
+
+    // Replace the log with the writes still pending, atomically so a crash leaves either the old or the new log
+    private static void rewrite(List<PendingWrite> remaining) throws IOException {
+        if (remaining.isEmpty()) {
+            Files.deleteIfExists(LOG);
+            return;
+        }
+        Path temp = LOG.resolveSibling(LOG.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder lines = new StringBuilder();
+            for (PendingWrite write : remaining) {
+                lines.append(write.toLine());
+            }
+            channel.write(ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+        Files.move(temp, LOG, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,48 @@
+package scheduler.model;
+
+import scheduler.util.LruCache;
+
+import java.sql.Date;
+import java.util.List;
+
+// Caches what search_caregiver_schedule reads: the free caregivers per date, and the vaccines with doses left.
+// Every write path in the model invalidates the entries it touches.
+public class ScheduleCache {
+    static final int MAX_DATES = 1024;
+    private static final long TTL_MILLIS = 30_000;
+    // there is a single vaccine list, so it is cached under one key
+    private static final String ALL_VACCINES = "*";
+
+    // date -> usernames of caregivers available that date
+    public static final LruCache<Date, List<String>> caregivers =
+            new LruCache<>("search_cache.caregivers", MAX_DATES, TTL_MILLIS);
+    // "*" -> "name doses" for every vaccine with doses left
+    public static final LruCache<String, List<String>> vaccines =
+            new LruCache<>("search_cache.vaccines", 1, TTL_MILLIS);
+
+    public static List<String> getVaccines() {
+        return vaccines.get(ALL_VACCINES);
+    }
+
+    public static void putVaccines(List<String> available, long stamp) {
+        vaccines.put(ALL_VACCINES, available, stamp);
+    }
+
+    // Availability, working windows or appointments changed on a date
+    public static void invalidateDate(Date date) {
+        caregivers.invalidate(date);
+        SlotAllocator.forget(date);
+    }
+
+    // Availability changed on dates we don't track individually
+    public static void invalidateAllDates() {
+        caregivers.invalidateAll();
+        CaregiverSelector.forgetAllDates();
+        SlotAllocator.forgetAll();
+    }
+
+    // Dose counts changed, which shows up in the search result for every date
+    public static void invalidateDoses() {
+        vaccines.invalidateAll();
+    }
+}
@@ -0,0 +1,132 @@
+package scheduler.model;
+
+import scheduler.util.LruCache;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Free appointment slots of one caregiver on one day. Slots are SLOT_MINUTES long on a fixed grid from midnight, so
+// a day is a bitmap of SLOTS_PER_DAY bits: set while the slot is inside a working window and not booked.
+// A caregiver's day is booked either whole or by the slot, never both: booking a slot takes the caregiver's
+// day-level availability, and a caregiver with a day-level appointment has no free slots.
+public class SlotAllocator {
+    public static final int SLOT_MINUTES = 15;
+    public static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    private static final long TTL_MILLIS = 30_000;
+
+    // date -> the allocators load() returned for it; reserve_slot books into them, and every other write to a date's
+    // windows or appointments drops the date (see ScheduleCache.invalidateDate)
+    private static final LruCache<Date, Map<String, SlotAllocator>> cache =
+            new LruCache<>("slot_cache", ScheduleCache.MAX_DATES, TTL_MILLIS);
+
+    private final BitSet free = new BitSet(SLOTS_PER_DAY);
+
+    // Working window [startMinute, endMinute), both on the slot grid
+    void addWindow(int startMinute, int endMinute) {
+        free.set(startMinute / SLOT_MINUTES, endMinute / SLOT_MINUTES);
+    }
+
+    void book(int minute) {
+        free.clear(minute / SLOT_MINUTES);
+    }
+
+    boolean isFree(int minute) {
+        return free.get(minute / SLOT_MINUTES);
+    }
+
+    // Minute of the first free slot at or after fromMinute, or -1 if there is none
+    int firstFree(int fromMinute) {
+        int slot = free.nextSetBit(fromMinute / SLOT_MINUTES);
+        return slot < 0 ? -1 : slot * SLOT_MINUTES;
+    }
+
+    // The allocators of time from the cache, loaded on a miss. The caller books the slots it takes into them, and
+    // calls forget(time) if its transaction rolls back.
+    static Map<String, SlotAllocator> cached(Connection con, Date time) throws SQLException {
+        Map<String, SlotAllocator> allocators = cache.get(time);
+        if (allocators == null) {
+            long stamp = cache.stamp();
+            allocators = load(con, time);
+            cache.put(time, allocators, stamp);
+        }
+        return allocators;
+    }
+
+    static void forget(Date time) {
+        cache.invalidate(time);
+    }
+
+    static void forgetAll() {
+        cache.invalidateAll();
+    }
+
+    // Allocators for every caregiver with a working window on time and no day-level appointment, keyed (and sorted)
+    // by username, with the slots already booked removed
+    static Map<String, SlotAllocator> load(Connection con, Date time) throws SQLException {
+        Map<String, SlotAllocator> allocators = new TreeMap<>();
+        String getWindows = "SELECT Username, Start_minute, End_minute FROM WorkingWindows WHERE Time = ?";
+        PreparedStatement windowStatement = con.prepareStatement(getWindows);
+        windowStatement.setDate(1, time);
+        ResultSet windows = windowStatement.executeQuery();
+        while (windows.next()) {
+            allocators.computeIfAbsent(windows.getString("Username"), u -> new SlotAllocator())
+                      .addWindow(windows.getInt("Start_minute"), windows.getInt("End_minute"));
+        }
+        String getBooked = "SELECT Caregiver, Slot_minute FROM Appointments WHERE Time = ?";
+        PreparedStatement bookedStatement = con.prepareStatement(getBooked);
+        bookedStatement.setDate(1, time);
+        ResultSet booked = bookedStatement.executeQuery();
+        while (booked.next()) {
+            int minute = booked.getInt("Slot_minute");
+            if (booked.wasNull()) {
+                allocators.remove(booked.getString("Caregiver"));
+                continue;
+            }
+            SlotAllocator allocator = allocators.get(booked.getString("Caregiver"));
+            if (allocator != null) {
+                allocator.book(minute);
+            }
+        }
+        return allocators;
+    }
+
+    // Number of caregivers free in each slot of the day on time, indexed by slot
+    public static int[] freeCaregiversPerSlot(Connection con, Date time) throws SQLException {
+        int[] free = new int[SLOTS_PER_DAY];
+        for (SlotAllocator allocator : load(con, time).values()) {
+            for (int slot = allocator.free.nextSetBit(0); slot >= 0; slot = allocator.free.nextSetBit(slot + 1)) {
+                free[slot]++;
+            }
+        }
+        return free;
+    }
+
+    // "HH:MM" -> minute of the day; -1 if malformed or not on the slot grid
+    public static int parseMinute(String time) {
+        String[] parts = time.split(":");
+        if (parts.length != 2) {
+            return -1;
+        }
+        try {
+            int hours = Integer.parseInt(parts[0]);
+            int minutes = Integer.parseInt(parts[1]);
+            int minute = hours * 60 + minutes;
+            if (hours < 0 || minutes < 0 || minutes >= 60 || minute > 24 * 60 || minute % SLOT_MINUTES != 0) {
+                return -1;
+            }
+            return minute;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String formatMinute(int minute) {
+        return String.format("%02d:%02d", minute / 60, minute % 60);
+    }
+}
@@ -2,10 +2,15 @@ package scheduler.model;
 
 import scheduler.db.ConnectionManager;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class Vaccine {
     private final String vaccineName;
@@ -30,25 +35,36 @@ public class Vaccine {
         return availableDoses;
     }
 
-    public void saveToDB() throws SQLException {
+    // writeID is recorded in AppliedWrites with the vaccine (see PendingWrite)
+    public void saveToDB(String writeID) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
         String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
+            con.setAutoCommit(false);
+            if (PendingWrite.claim(con, writeID)) {
+                PreparedStatement statement = con.prepareStatement(addDoses);
+                statement.setString(1, this.vaccineName);
+                statement.setInt(2, this.availableDoses);
+                statement.executeUpdate();
+            }
+            con.commit();
+            ScheduleCache.invalidateDoses();
         } catch (SQLException e) {
-            throw new SQLException();
+            try {
+                con.rollback();
+            } catch (SQLException r) {
+                e.addSuppressed(r);
+            }
+            throw e;
         } finally {
             cm.closeConnection();
         }
     }
 
-    // Increment the available doses
-    public void increaseAvailableDoses(int num) throws SQLException {
+    // Increment the available doses; writeID is recorded in AppliedWrites with them (see PendingWrite)
+    public void increaseAvailableDoses(int num, String writeID) throws SQLException {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
@@ -57,14 +73,20 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            con.setAutoCommit(false);
+            if (PendingWrite.claim(con, writeID)) {
+                putDoses(con, this.vaccineName, num);
+            }
+            con.commit();
+            ScheduleCache.invalidateDoses();
         } catch (SQLException e) {
-            throw new SQLException();
+            try {
+                con.rollback();
+            } catch (SQLException r) {
+                e.addSuppressed(r);
+            }
+            throw e;
         } finally {
             cm.closeConnection();
         }
@@ -79,14 +101,114 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            con.setAutoCommit(false);
+            if (!takeDoses(con, this.vaccineName, num)) {
+                con.rollback();
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+            con.commit();
+            ScheduleCache.invalidateDoses();
+        } catch (SQLException e) {
+            try {
+                con.rollback();
+            } catch (SQLException r) {
+                e.addSuppressed(r);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Take count doses of name inside the caller's transaction, from a random stripe when the vaccine is striped.
+    // Returns false, taking nothing, if there are not enough doses.
+    static boolean takeDoses(Connection con, String name, int count) throws SQLException {
+        CallableStatement statement = con.prepareCall("{? = call TakeDoses(?, ?)}");
+        statement.registerOutParameter(1, Types.INTEGER);
+        statement.setString(2, name);
+        statement.setInt(3, count);
+        statement.execute();
+        return statement.getInt(1) == 0;
+    }
+
+    // Give count doses of name back inside the caller's transaction (or on their own with auto-commit)
+    static void putDoses(Connection con, String name, int count) throws SQLException {
+        CallableStatement statement = con.prepareCall("{call PutDoses(?, ?)}");
+        statement.setString(1, name);
+        statement.setInt(2, count);
+        statement.execute();
+    }
+
+    // Split the doses of name over the given number of stripes, or keep them in one row when stripes is 0.
+    // Reservations of a striped vaccine decrement different rows, so they no longer queue on one another.
+    public static void setStripes(String name, int stripes) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        try {
+            CallableStatement statement = con.prepareCall("{call StripeVaccine(?, ?)}");
+            statement.setString(1, name);
+            statement.setInt(2, stripes);
+            statement.execute();
+            ScheduleCache.invalidateDoses();
+        } catch (SQLException e) {
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Add doses to many vaccines at once (creating the ones that don't exist yet) with a single MERGE in one
+    // transaction; striped vaccines get an even share in every stripe. Returns the resulting inventory of every
+    // vaccine in shipment, sorted by name.
+    public static List<Vaccine> addDoses(Map<String, Integer> shipment) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < shipment.size(); i++) {
+            rows.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        String mergeDoses =
+                "SET NOCOUNT ON; " +
+                "SET XACT_ABORT ON; " +
+                "DECLARE @shipment TABLE (Name VARCHAR(255) PRIMARY KEY, Doses INT); " +
+                "INSERT INTO @shipment (Name, Doses) VALUES " + rows + "; " +
+                "BEGIN TRANSACTION; " +
+                "MERGE Vaccines WITH (HOLDLOCK) AS V " +
+                "USING @shipment AS S ON V.Name = S.Name " +
+                "WHEN MATCHED AND NOT EXISTS (SELECT 1 FROM VaccineStripes VS WHERE VS.Name = S.Name) " +
+                    "THEN UPDATE SET Doses = V.Doses + S.Doses " +
+                "WHEN NOT MATCHED THEN INSERT (Name, Doses) VALUES (S.Name, S.Doses); " +
+                "UPDATE VS SET Doses = VS.Doses + S.Doses / K.Stripes " +
+                                     "+ CASE WHEN VS.Stripe < S.Doses % K.Stripes THEN 1 ELSE 0 END " +
+                  "FROM VaccineStripes VS " +
+                  "JOIN @shipment S ON VS.Name = S.Name " +
+                  "JOIN (SELECT Name, COUNT(*) AS Stripes FROM VaccineStripes GROUP BY Name) K ON K.Name = S.Name; " +
+                "COMMIT TRANSACTION; " +
+                "SELECT I.Name, I.Doses FROM VaccineInventory I JOIN @shipment S ON I.Name = S.Name ORDER BY I.Name;";
+        try {
+            PreparedStatement statement = con.prepareStatement(mergeDoses);
+            int index = 1;
+            for (Map.Entry<String, Integer> line : shipment.entrySet()) {
+                statement.setString(index++, line.getKey());
+                statement.setInt(index++, line.getValue());
+            }
+            boolean isResultSet = statement.execute();
+            // skip any update counts before the first result set
+            while (!isResultSet && statement.getUpdateCount() != -1) {
+                isResultSet = statement.getMoreResults();
+            }
+            ResultSet resultSet = statement.getResultSet();
+            List<Vaccine> inventory = new ArrayList<>();
+            while (resultSet.next()) {
+                inventory.add(new VaccineBuilder(resultSet.getString("Name"), resultSet.getInt("Doses")).build());
+            }
+            ScheduleCache.invalidateDoses();
+            return inventory;
         } catch (SQLException e) {
-            throw new SQLException();
+            throw e;
         } finally {
             cm.closeConnection();
         }
@@ -126,7 +248,7 @@ public class Vaccine {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+            String getVaccine = "SELECT Name, Doses FROM VaccineInventory WHERE Name = ?";
             try {
                 PreparedStatement statement = con.prepareStatement(getVaccine);
                 statement.setString(1, this.vaccineName);
@@ -137,7 +259,7 @@ public class Vaccine {
                 }
                 return null;
             } catch (SQLException e) {
-                throw new SQLException();
+                throw e;
             } finally {
                 cm.closeConnection();
             }
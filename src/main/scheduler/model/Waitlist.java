@@ -0,0 +1,257 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Waitlist {
+    // number of waitlist entries considered per drain transaction
+    private static final int DRAIN_BATCH_SIZE = 500;
+
+    private final int waitlistID;
+    private final Date time;
+    private final String vaccine;
+    private final String patient;
+    private final int position;
+
+    private Waitlist(WaitlistBuilder builder) {
+        this.waitlistID = builder.waitlistID;
+        this.time = builder.time;
+        this.vaccine = builder.vaccine;
+        this.patient = builder.patient;
+        this.position = builder.position;
+    }
+
+    // Getters
+    public int getWaitlistID() { return waitlistID; }
+
+    public Date getTime() { return time; }
+
+    public String getVaccine() { return vaccine; }
+
+    public String getPatient() { return patient; }
+
+    public int getPosition() { return position; }
+
+    // Assign waitlisted patients (oldest first) to free caregivers and available doses.
+    // Either argument may be null to match every date / vaccine. Runs one transaction per page of
+    // DRAIN_BATCH_SIZE entries, paging past the entries that could not be placed so that they don't hide
+    // placeable ones behind them, and returns every appointment that was created.
+    public static List<Appointment> drain(Date time, String vaccine) throws SQLException {
+        List<Appointment> created = new ArrayList<>();
+        int after = 0;
+        while (true) {
+            int[] counts = new int[2];
+            created.addAll(drainBatch(time, vaccine, after, counts));
+            // stop once the last page was read
+            if (counts[0] < DRAIN_BATCH_SIZE) {
+                return created;
+            }
+            after = counts[1];
+        }
+    }
+
+    // Entries with Waitlist_id above after. counts[0] is set to the number of entries read, counts[1] to the
+    // Waitlist_id of the last one.
+    private static List<Appointment> drainBatch(Date time, String vaccine, int after, int[] counts)
+            throws SQLException {
+        String filter = "Waitlist_id > ?" + (time != null ? " AND Time = ?" : "") +
+                        (vaccine != null ? " AND Vaccine = ?" : "");
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            // Oldest waitlist entries first
+            String getEntries = "SELECT TOP (" + DRAIN_BATCH_SIZE + ") Waitlist_id, Time, Vaccine, Patient " +
+                                  "FROM Waitlist WITH (UPDLOCK, ROWLOCK) " +
+                                 "WHERE " + filter + " ORDER BY Waitlist_id ASC";
+            PreparedStatement entryStatement = con.prepareStatement(getEntries);
+            bindFilter(entryStatement, after, time, vaccine);
+            ResultSet entries = entryStatement.executeQuery();
+            List<Waitlist> waiting = new ArrayList<>();
+            while (entries.next()) {
+                WaitlistBuilder entry = new WaitlistBuilder(entries.getDate("Time"), entries.getString("Vaccine"),
+                                                            entries.getString("Patient"));
+                entry.waitlistID = entries.getInt("Waitlist_id");
+                waiting.add(new Waitlist(entry));
+            }
+            counts[0] = waiting.size();
+            if (waiting.isEmpty()) {
+                con.commit();
+                return new ArrayList<>();
+            }
+            int last = waiting.get(waiting.size() - 1).waitlistID;
+            counts[1] = last;
+            // only the dates and vaccines of this page
+            String page = filter + " AND Waitlist_id <= " + last;
+            // Free caregivers on the waitlisted dates
+            String getCaregivers = "SELECT Time, Username FROM Availabilities WITH (UPDLOCK, HOLDLOCK) " +
+                                    "WHERE Time IN (SELECT Time FROM Waitlist WHERE " + page + ") " +
+                                    "ORDER BY Time ASC, Username ASC";
+            PreparedStatement caregiverStatement = con.prepareStatement(getCaregivers);
+            bindFilter(caregiverStatement, after, time, vaccine);
+            ResultSet caregiverSet = caregiverStatement.executeQuery();
+            Map<Date, Deque<String>> freeCaregivers = new HashMap<>();
+            while (caregiverSet.next()) {
+                freeCaregivers.computeIfAbsent(caregiverSet.getDate("Time"), d -> new ArrayDeque<>())
+                              .add(caregiverSet.getString("Username"));
+            }
+            // Doses of the waitlisted vaccines, read without locks; TakeDoses below rechecks them
+            String getDoses = "SELECT Name, Doses FROM VaccineInventory " +
+                               "WHERE Name IN (SELECT Vaccine FROM Waitlist WHERE " + page + ")";
+            PreparedStatement doseStatement = con.prepareStatement(getDoses);
+            bindFilter(doseStatement, after, time, vaccine);
+            ResultSet doseSet = doseStatement.executeQuery();
+            Map<String, Integer> doses = new HashMap<>();
+            while (doseSet.next()) {
+                doses.put(doseSet.getString("Name"), doseSet.getInt("Doses"));
+            }
+            // Pair entries with caregivers and doses in FIFO order
+            List<Waitlist> placed = new ArrayList<>();
+            List<String> placedCaregivers = new ArrayList<>();
+            Map<String, Integer> dosesUsed = new HashMap<>();
+            for (Waitlist entry : waiting) {
+                Deque<String> caregivers = freeCaregivers.get(entry.time);
+                int remaining = doses.getOrDefault(entry.vaccine, 0) - dosesUsed.getOrDefault(entry.vaccine, 0);
+                if (caregivers == null || caregivers.isEmpty() || remaining <= 0) {
+                    continue;
+                }
+                placed.add(entry);
+                placedCaregivers.add(caregivers.poll());
+                dosesUsed.merge(entry.vaccine, 1, Integer::sum);
+            }
+            if (placed.isEmpty()) {
+                con.commit();
+                return new ArrayList<>();
+            }
+            // Remove availabilities and waitlist entries in batches
+            PreparedStatement removeAvailability = con.prepareStatement(
+                    "DELETE FROM Availabilities WHERE Time = ? AND Username = ?");
+            PreparedStatement removeEntry = con.prepareStatement("DELETE FROM Waitlist WHERE Waitlist_id = ?");
+            for (int i = 0; i < placed.size(); i++) {
+                removeAvailability.setDate(1, placed.get(i).time);
+                removeAvailability.setString(2, placedCaregivers.get(i));
+                removeAvailability.addBatch();
+                removeEntry.setInt(1, placed.get(i).waitlistID);
+                removeEntry.addBatch();
+            }
+            removeAvailability.executeBatch();
+            removeEntry.executeBatch();
+            // Take the doses, one call per vaccine
+            for (Map.Entry<String, Integer> used : dosesUsed.entrySet()) {
+                if (!Vaccine.takeDoses(con, used.getKey(), used.getValue())) {
+                    // retried like a deadlock: the batch is counted again from the start
+                    throw new SQLTransientException("Doses of " + used.getKey() + " were taken concurrently");
+                }
+            }
+            // Create every appointment with a single multi-row insert; OUTPUT needs INTO on a table with triggers
+            StringBuilder insertAppointments = new StringBuilder(
+                    "SET NOCOUNT ON; " +
+                    "DECLARE @created TABLE (Appointment_id INT, Time DATE, Caregiver VARCHAR(255), " +
+                                            "Vaccine VARCHAR(255), Patient VARCHAR(255)); " +
+                    "INSERT INTO Appointments (Time, Caregiver, Vaccine, Patient) " +
+                    "OUTPUT inserted.Appointment_id, inserted.Time, inserted.Caregiver, inserted.Vaccine, " +
+                           "inserted.Patient INTO @created " +
+                    "VALUES ");
+            for (int i = 0; i < placed.size(); i++) {
+                insertAppointments.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            }
+            insertAppointments.append("; SELECT Appointment_id, Time, Caregiver, Vaccine, Patient FROM @created " +
+                                      "ORDER BY Appointment_id;");
+            PreparedStatement appointmentStatement = con.prepareStatement(insertAppointments.toString());
+            for (int i = 0; i < placed.size(); i++) {
+                appointmentStatement.setDate(4 * i + 1, placed.get(i).time);
+                appointmentStatement.setString(4 * i + 2, placedCaregivers.get(i));
+                appointmentStatement.setString(4 * i + 3, placed.get(i).vaccine);
+                appointmentStatement.setString(4 * i + 4, placed.get(i).patient);
+            }
+            ResultSet inserted = appointmentStatement.executeQuery();
+            List<Appointment> created = new ArrayList<>();
+            while (inserted.next()) {
+                created.add(new Appointment(inserted.getDate("Time"), inserted.getString("Caregiver"),
+                                            inserted.getString("Vaccine"), inserted.getString("Patient"),
+                                            inserted.getInt("Appointment_id")));
+            }
+            con.commit();
+            for (Waitlist entry : placed) {
+                ScheduleCache.invalidateDate(entry.time);
+                CaregiverSelector.CaregiverLoad.forget(entry.time);
+            }
+            ScheduleCache.invalidateDoses();
+            return created;
+        } catch (SQLException e) {
+            try {
+                con.rollback();
+            } catch (SQLException r) {
+                e.addSuppressed(r);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void bindFilter(PreparedStatement statement, int after, Date time, String vaccine)
+            throws SQLException {
+        statement.setInt(1, after);
+        int index = 2;
+        if (time != null) {
+            statement.setDate(index++, time);
+        }
+        if (vaccine != null) {
+            statement.setString(index, vaccine);
+        }
+    }
+
+    public static class WaitlistBuilder {
+        private final Date time;
+        private final String vaccine;
+        private final String patient;
+        private int waitlistID;
+        private int position;
+
+        public WaitlistBuilder(Date time, String vaccine, String patient) {
+            this.time = time;
+            this.vaccine = vaccine;
+            this.patient = patient;
+        }
+
+        // Enqueue the patient and report their position in the queue for this date and vaccine
+        public Waitlist build() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                String addEntry = "INSERT INTO Waitlist (Time, Vaccine, Patient) OUTPUT inserted.Waitlist_id " +
+                                  "VALUES (?, ?, ?)";
+                PreparedStatement entryStatement = con.prepareStatement(addEntry);
+                entryStatement.setDate(1, time);
+                entryStatement.setString(2, vaccine);
+                entryStatement.setString(3, patient);
+                ResultSet ID = entryStatement.executeQuery();
+                ID.next();
+                this.waitlistID = ID.getInt("Waitlist_id");
+                // Get position in the queue
+                String getPosition = "SELECT COUNT(*) AS Position FROM Waitlist " +
+                                      "WHERE Time = ? AND Vaccine = ? AND Waitlist_id <= ?";
+                PreparedStatement positionStatement = con.prepareStatement(getPosition);
+                positionStatement.setDate(1, time);
+                positionStatement.setString(2, vaccine);
+                positionStatement.setInt(3, waitlistID);
+                ResultSet position = positionStatement.executeQuery();
+                position.next();
+                this.position = position.getInt("Position");
+            } catch (SQLException e) {
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+            return new Waitlist(this);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package scheduler.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Append-only history of what the commands did. record() only formats the event and queues it; a single background
+// thread appends queued events to memory-mapped segment files and forces them to disk at most every
+// FSYNC_INTERVAL_MILLIS. Each event is one tab-separated UTF-8 line: timestamp, event type, then its fields.
+// Segments are named events-<sequence>.log under JournalDir (default "journal"); the unused tail of the newest one
+// is zero bytes.
+public class EventJournal {
+    public static final String AVAILABILITY_UPLOADED = "AvailabilityUploaded";
+    public static final String APPOINTMENT_RESERVED = "AppointmentReserved";
+    public static final String APPOINTMENT_CANCELLED = "AppointmentCancelled";
+    public static final String APPOINTMENT_REASSIGNED = "AppointmentReassigned";
+    public static final String DOSES_CHANGED = "DosesChanged";
+
+    private static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+    private static final long FSYNC_INTERVAL_MILLIS = 50;
+    // events waiting for the writer; when it falls this far behind, new events are dropped rather than block commands
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final Path DIRECTORY = Paths.get(System.getenv("JournalDir") != null ?
+                                                    System.getenv("JournalDir") : "journal");
+
+    private static final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static volatile boolean closed = false;
+    private static final Thread writer = new Thread(new Writer(), "event-journal");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventJournal::close));
+    }
+
+    public static void record(String type, Object... fields) {
+        if (closed) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(Instant.now().toString()).append('\t').append(type);
+        for (Object field : fields) {
+            // tabs and line breaks would split the event
+            line.append('\t').append(String.valueOf(field).replaceAll("[\\t\\r\\n]", " "));
+        }
+        line.append('\n');
+        if (!queue.offer(line.toString().getBytes(StandardCharsets.UTF_8))) {
+            Metrics.increment("journal.dropped");
+        }
+    }
+
+    public interface Reader {
+        // fields[0] is the timestamp, fields[1] the event type, then the event's own fields
+        void accept(String[] fields);
+    }
+
+    // Pass every event written so far to reader, oldest first
+    public static void read(Reader reader) throws IOException {
+        if (!Files.isDirectory(DIRECTORY)) {
+            return;
+        }
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(DIRECTORY, "events-*.log")) {
+            for (Path path : paths) {
+                segments.add(path);
+            }
+        }
+        // zero-padded sequence numbers sort by name
+        Collections.sort(segments);
+        for (Path segment : segments) {
+            byte[] bytes = Files.readAllBytes(segment);
+            int end = 0;
+            while (end < bytes.length && bytes[end] != 0) {
+                end++;
+            }
+            String events = new String(bytes, 0, end, StandardCharsets.UTF_8);
+            for (String line : events.split("\n")) {
+                if (!line.isEmpty()) {
+                    reader.accept(line.split("\t"));
+                }
+            }
+        }
+    }
+
+    // Write and force everything queued so far, then stop accepting events
+    public static void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Writer implements Runnable {
+        private long sequence;
+        private MappedByteBuffer segment;
+        // start of the bytes written since the last force
+        private int unforced;
+
+        @Override
+        public void run() {
+            try {
+                Files.createDirectories(DIRECTORY);
+                openNewest();
+                List<byte[]> batch = new ArrayList<>();
+                long lastForce = System.nanoTime();
+                while (!closed || !queue.isEmpty()) {
+                    byte[] first = queue.poll(FSYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch);
+                    }
+                    for (byte[] event : batch) {
+                        append(event);
+                    }
+                    Metrics.add("journal.events", batch.size());
+                    batch.clear();
+                    long sinceForce = System.nanoTime() - lastForce;
+                    if (closed || sinceForce >= TimeUnit.MILLISECONDS.toNanos(FSYNC_INTERVAL_MILLIS)) {
+                        force();
+                        lastForce = System.nanoTime();
+                    }
+                }
+                force();
+            } catch (IOException e) {
+                // stop journaling rather than fail the commands that record events
+                System.out.println("Event journal stopped: " + e);
+                closed = true;
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+        }
+
+        private void append(byte[] event) throws IOException {
+            if (event.length > SEGMENT_BYTES) {
+                Metrics.increment("journal.dropped");
+                return;
+            }
+            if (event.length > segment.remaining()) {
+                force();
+                map(sequence + 1);
+            }
+            segment.put(event);
+        }
+
+        private void force() {
+            if (segment.position() > unforced) {
+                segment.force(unforced, segment.position() - unforced);
+                unforced = segment.position();
+                Metrics.increment("journal.fsyncs");
+            }
+        }
+
+        // Continue the segment with the highest sequence number, after the last event in it
+        private void openNewest() throws IOException {
+            long newest = 0;
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(DIRECTORY, "events-*.log")) {
+                for (Path path : segments) {
+                    String name = path.getFileName().toString();
+                    try {
+                        newest = Math.max(newest, Long.parseLong(name.substring(7, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+            map(Math.max(newest, 1));
+            // UTF-8 text never contains a zero byte, so the written part ends at the first zero
+            int low = 0;
+            int high = segment.capacity();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (segment.get(middle) == 0) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            segment.position(low);
+            unforced = low;
+        }
+
+        private void map(long sequence) throws IOException {
+            Path path = DIRECTORY.resolve(String.format("events-%010d.log", sequence));
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE)) {
+                // the mapping stays valid after the channel is closed
+                this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+            }
+            this.sequence = sequence;
+            this.unforced = 0;
+            Metrics.increment("journal.segments");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package scheduler.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Admission control for password hashing. At most MAX_CONCURRENT hashes run at once, so a burst of logins or account
+// creations can't take every core from reservations and searches. Up to MAX_QUEUED more wait, first come first
+// served, for at most QUEUE_DEADLINE_MILLIS; past that, or with the queue full, the hash is rejected at once with a
+// hint of when to retry.
+public class HashAdmission {
+    // half the cores, leaving the rest to the other commands
+    private static final int MAX_CONCURRENT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int MAX_QUEUED = 2 * MAX_CONCURRENT;
+    private static final long QUEUE_DEADLINE_MILLIS = 500;
+
+    private static final Semaphore permits = new Semaphore(MAX_CONCURRENT, true);
+    private static final AtomicInteger queued = new AtomicInteger();
+    // moving average of the time one hash takes, for the retry hint
+    private static volatile double averageHashMillis = 1;
+
+    public static class BusyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+
+        BusyException(long retryAfterMillis) {
+            super("Busy, retry in " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public long getRetryAfterMillis() { return retryAfterMillis; }
+    }
+
+    // Util.generateHash, once admitted
+    public static byte[] generateHash(String password, byte[] salt) throws BusyException {
+        long start = System.nanoTime();
+        acquire();
+        long admitted = System.nanoTime();
+        Metrics.increment("admission.hash.admitted");
+        Metrics.add("admission.hash.queue_time_ms", TimeUnit.NANOSECONDS.toMillis(admitted - start));
+        try {
+            return Util.generateHash(password, salt);
+        } finally {
+            permits.release();
+            double millis = (System.nanoTime() - admitted) / 1e6;
+            averageHashMillis = 0.9 * averageHashMillis + 0.1 * millis;
+        }
+    }
+
+    private static void acquire() throws BusyException {
+        try {
+            // a timed acquire, even of zero, keeps to the fair order instead of jumping the waiting threads
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            if (queued.incrementAndGet() > MAX_QUEUED) {
+                queued.decrementAndGet();
+                Metrics.increment("admission.hash.rejected_queue_full");
+                throw new BusyException(retryAfterMillis());
+            }
+            try {
+                if (!permits.tryAcquire(QUEUE_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    Metrics.increment("admission.hash.rejected_deadline");
+                    throw new BusyException(retryAfterMillis());
+                }
+            } finally {
+                queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusyException(retryAfterMillis());
+        }
+    }
+
+    // Roughly how long until the hashes ahead of a new one have run
+    private static long retryAfterMillis() {
+        return Math.max(1, (long) Math.ceil(averageHashMillis * (queued.get() / (double) MAX_CONCURRENT + 1)));
+    }
+}
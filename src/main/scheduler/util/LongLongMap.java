@@ -0,0 +1,98 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+// Open-addressing hash map from long to long counters, without boxing either. Not thread-safe: fill one per thread
+// and merge them.
+public class LongLongMap {
+    // marks an empty slot, so it can't be used as a key
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private long[] values;
+    private int size = 0;
+
+    public interface Consumer {
+        void accept(long key, long value);
+    }
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected * 2, 16) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long get(long key) {
+        int slot = find(keys, key);
+        return keys[slot] == key ? values[slot] : 0;
+    }
+
+    public void add(long key, long delta) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key cannot be Long.MIN_VALUE");
+        }
+        int slot = find(keys, key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                grow();
+                slot = find(keys, key);
+            }
+        }
+        values[slot] += delta;
+    }
+
+    // Add every counter of other to this one
+    public void addAll(LongLongMap other) {
+        other.forEach(this::add);
+    }
+
+    public void forEach(Consumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    // Slot holding key, or the empty slot where it would go
+    private static int find(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
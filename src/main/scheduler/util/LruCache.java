@@ -0,0 +1,86 @@
+package scheduler.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded LRU cache with a time-to-live per entry. Hits, misses, evictions and expirations are counted in
+// Metrics under the cache's name.
+public class LruCache<K, V> {
+    private final String name;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    // bumped by every invalidation so a value computed before an invalidation is never stored after it
+    private long generation = 0;
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public LruCache(String name, int maxEntries, long ttlMillis) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            Metrics.increment(name + ".expirations");
+            entry = null;
+        }
+        if (entry == null) {
+            Metrics.increment(name + ".misses");
+            return null;
+        }
+        Metrics.increment(name + ".hits");
+        return entry.value;
+    }
+
+    // Take before loading a value; pass to put so a load that raced with an invalidation is dropped
+    public synchronized long stamp() {
+        return generation;
+    }
+
+    public synchronized void put(K key, V value, long stamp) {
+        if (stamp != generation) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+        Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+            Metrics.increment(name + ".evictions");
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    public double hitRatio() {
+        long hits = Metrics.get(name + ".hits");
+        long lookups = hits + Metrics.get(name + ".misses");
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public String getName() {
+        return name;
+    }
+}